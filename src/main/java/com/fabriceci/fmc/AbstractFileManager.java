@@ -3,10 +3,8 @@ package com.fabriceci.fmc;
 import com.fabriceci.fmc.error.ClientErrorMessage;
 import com.fabriceci.fmc.error.FileManagerException;
 import com.fabriceci.fmc.model.*;
-import com.fabriceci.fmc.util.FileUtils;
-import com.fabriceci.fmc.util.StringUtils;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.fabriceci.fmc.util.*;
+import com.google.gson.JsonIOException;
 import org.imgscalr.Scalr;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,67 +14,62 @@ import javax.servlet.http.HttpServletResponse;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.text.Normalizer;
 import java.util.*;
 import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 public abstract class AbstractFileManager implements IFileManager {
 
-    private final static String CONFIG_DEFAULT_PROPERTIES = "filemanager.config.default.properties";
-    private final static String CONFIG_CUSTOM_PROPERTIES = "filemanager.config.properties";
     protected final static String LANG_FILE = "filemanager.lang.en.properties";
     private static final Pattern NONLATIN = Pattern.compile("[^\\w-]");
     private static final Pattern WHITESPACE = Pattern.compile("[\\s]");
+    // configuration of the request handled by the current thread
+    private static final ThreadLocal<FileManagerConfig> requestConfig = new ThreadLocal<>();
     protected final Logger logger = LoggerFactory.getLogger(AbstractFileManager.class);
-    protected boolean readOnly = false;
-    protected Properties propertiesConfig = new Properties();
+    /**
+     * @deprecated set from the "readOnly" property each time the configuration is parsed, use
+     * {@link #getPropertiesConfig()} instead
+     */
+    @Deprecated
+    protected volatile boolean readOnly = false;
+    /**
+     * @deprecated use {@link #getPropertiesConfig()}
+     */
+    @Deprecated
+    protected volatile Properties propertiesConfig = new Properties();
+    private volatile ConfigState configState;
 
     public AbstractFileManager(Map<String, String> options) {
-        // load server properties
-        InputStream tempLoadIS = null;
-
-        // load default config file
-        tempLoadIS = Thread.currentThread().getContextClassLoader().getResourceAsStream(CONFIG_DEFAULT_PROPERTIES);
-        try {
-            propertiesConfig.load(tempLoadIS);
-        } catch (IOException ignored) {
-        }
-
-        try {
-            tempLoadIS.close();
-        } catch (IOException ignored) {
-        }
-
-        // load custom config file if exists
-        tempLoadIS = Thread.currentThread().getContextClassLoader().getResourceAsStream(CONFIG_CUSTOM_PROPERTIES);
-        if (tempLoadIS != null) {
-            Properties customConfig = new Properties();
-            try {
-                customConfig.load(tempLoadIS);
-            } catch (IOException ignored) {
-            }
-
-            propertiesConfig.putAll(customConfig);
-            try {
-                tempLoadIS.close();
-            } catch (IOException ignored) {
-            }
-        }
+        // server properties, from the default and custom config files
+        Properties propertiesConfig = FileManagerConfigLoader.getInstance().getConfig().getProperties();
 
         if (options != null && !options.isEmpty()) {
             propertiesConfig.putAll(options);
         }
 
-        readOnly = Boolean.parseBoolean(propertiesConfig.getProperty("readOnly"));
+        setPropertiesConfig(propertiesConfig);
     }
 
     public AbstractFileManager() {
         this(null);
     }
 
-    private static String cleanPath(String path) {
+    /**
+     * Stops the background threads shared by the file managers, when the application stops. Registering
+     * {@link FileManagerContextListener} does it.
+     */
+    public static void shutdown() {
+        FileManagerConfigLoader.shutdown();
+        ThumbnailQueue.shutdown();
+        ThumbnailCache.shutdown();
+        PackThumbnailStore.shutdown();
+        ChunkedUploadStore.shutdown();
+        ThreadPools.shutdown();
+    }
+
+    protected static String cleanPath(String path) {
         if (path == null) return null;
         return path.replace("//", "/").replace("..", "");
     }
@@ -86,14 +79,20 @@ public abstract class AbstractFileManager implements IFileManager {
         //baseUrl = ServletUtils.getBaseUrl(request);
 
         final String method = request.getMethod();
-        final String mode = request.getParameter("mode");
-        final String pathParam = cleanPath(request.getParameter("path"));
+        // the body of an upload is streamed to the files, asking the container for its parameters would read it whole
+        // first: they come from the query string, or from the form fields before the files, read by the upload
+        final boolean multipart = method.equals("POST") && isMultipart(request);
+        final Map<String, String> queryParameters = multipart ? getQueryParameters(request) : null;
+        final String mode = multipart ? (queryParameters.containsKey("mode") ? queryParameters.get("mode") : "upload") : request.getParameter("mode");
+        final String pathParam = cleanPath(multipart ? queryParameters.get("path") : request.getParameter("path"));
         String sourcePath = null;
         String targetPath = null;
 
         Object responseData = null;
         response.setStatus(200);
 
+        // the whole request sees the same configuration, even if it is reloaded meanwhile
+        FileManagerConfig previousConfig = pinConfig(getCurrentConfig());
         try {
             if (StringUtils.isEmpty(mode)) {
                 generateResponse(response, ClientErrorMessage.MODE_ERROR);
@@ -114,8 +113,18 @@ public abstract class AbstractFileManager implements IFileManager {
                         break;
                     case "readfolder":
                         final String typeParam = request.getParameter("type");
+                        final int offset = getIntParameter(request, "offset", 0);
+                        final int limit = getIntParameter(request, "limit", 0);
                         if (!StringUtils.isEmpty(pathParam)) {
-                            responseData = actionReadFolder(pathParam, typeParam);
+                            if (Boolean.parseBoolean(request.getParameter("stream"))) {
+                                // the entries are written as they are read, they cannot be sorted
+                                if (!StringUtils.isEmpty(request.getParameter("sort"))) {
+                                    throw new FileManagerException(ClientErrorMessage.INVALID_VAR, Collections.singletonList("sort"));
+                                }
+                                responseData = actionStreamFolder(response, pathParam, typeParam, offset, limit);
+                            } else {
+                                responseData = actionReadFolder(pathParam, typeParam, request.getParameter("sort"), request.getParameter("order"), offset, limit);
+                            }
                         }
                         break;
                     case "seekfolder":
@@ -158,13 +167,13 @@ public abstract class AbstractFileManager implements IFileManager {
                         break;
                     case "download":
                         if (!StringUtils.isEmpty(pathParam)) {
-                            responseData = actionDownload(response, pathParam);
+                            responseData = actionDownload(request, response, pathParam);
                         }
                         break;
                     case "getimage":
                         if (!StringUtils.isEmpty(pathParam)) {
                             Boolean thumbnail = Boolean.parseBoolean(request.getParameter("thumbnail"));
-                            responseData = actionGetImage(response, pathParam, thumbnail);
+                            responseData = actionGetImage(response, pathParam, thumbnail, getIntParameter(request, "size", 0));
                         }
                         break;
                     case "readfile" :
@@ -181,8 +190,9 @@ public abstract class AbstractFileManager implements IFileManager {
                     default:
                         throw new FileManagerException(ClientErrorMessage.MODE_ERROR);
                     case "upload":
-                        if (!StringUtils.isEmpty(pathParam)) {
-                            responseData = actionUpload(request, pathParam);
+                        if (multipart) {
+                            // without a path in the query string, it is read from the form fields
+                            responseData = actionUpload(request, StringUtils.isEmpty(pathParam) ? null : pathParam);
                         }
                         break;
                     case "savefile":
@@ -211,47 +221,91 @@ public abstract class AbstractFileManager implements IFileManager {
         } catch (Exception e) {
             logger.info(e.getMessage(), e);
             generateErrorResponse(response, "ERROR_SERVER", null);
+        } finally {
+            afterRequest();
+            pinConfig(previousConfig);
         }
+    }
 
+    /**
+     * Called once the request has been handled, whatever the outcome.
+     */
+    protected void afterRequest() {
+    }
 
+    private static boolean isMultipart(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith("multipart/");
+    }
+
+    /**
+     * @return the parameters of the query string, without reading the body of the request
+     */
+    private static Map<String, String> getQueryParameters(HttpServletRequest request) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = request.getQueryString();
+        if (StringUtils.isEmpty(query)) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            try {
+                String name = URLDecoder.decode(separator < 0 ? parameter : parameter.substring(0, separator), "UTF-8");
+                if (!parameters.containsKey(name)) {
+                    parameters.put(name, separator < 0 ? "" : URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+                }
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                // a malformed parameter is ignored, as the containers do
+            }
+        }
+        return parameters;
+    }
+
+    private static int getIntParameter(HttpServletRequest request, String name, int defaultValue) throws FileManagerException {
+        String value = request.getParameter(name);
+        if (StringUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new FileManagerException(ClientErrorMessage.INVALID_VAR, Collections.singletonList(name));
+        }
     }
 
     private void generateErrorResponse(HttpServletResponse response, String message, List<String> arguments) {
         response.setStatus(500);
         response.addHeader("Content-Type", "application/json; charset=utf-8");
 
-        Gson gson = new GsonBuilder().create();
-
         ErrorItem errorItem = new ErrorItem(message, arguments);
 
         try {
-            response.getWriter().write(gson.toJson(new ErrorResponse(errorItem)));
-        } catch (IOException ignore) {}
+            JsonUtils.getGson().toJson(new ErrorResponse(errorItem), response.getWriter());
+        } catch (IOException | JsonIOException ignore) {}
     }
 
     private void generateResponse(HttpServletResponse response, Object data) throws IOException {
         response.setStatus(200);
         response.addHeader("Content-Type", "application/json; charset=utf-8");
 
-        Gson gson = new GsonBuilder().create();
-
-        response.getWriter().write(gson.toJson(new SuccessResponse(data)));
+        JsonUtils.getGson().toJson(new SuccessResponse(data), response.getWriter());
     }
 
     @Override
     public InitiateData actionInitiate() throws FileManagerException {
 
+        FileManagerConfig config = getConfig();
+
         ConfigUpload configUpload = new ConfigUpload();
-        configUpload.setFileSizeLimit(Long.parseLong(propertiesConfig.getProperty("upload.fileSizeLimit")));
+        configUpload.setFileSizeLimit(getUploadFileSizeLimit());
 
 
         ConfigExtensions configExtensions = new ConfigExtensions();
-        boolean policyAllow = Boolean.parseBoolean(propertiesConfig.getProperty("extensions.policy.allow"));
-        configExtensions.setPolicy(policyAllow ? "ALLOW_LIST" : "DISALLOW_LIST");
-        configExtensions.setRestrictions(propertiesConfig.getProperty("extensions.restrictions").split(","));
+        configExtensions.setPolicy(config.isExtensionsPolicyAllow() ? "ALLOW_LIST" : "DISALLOW_LIST");
+        configExtensions.setRestrictions(config.getExtensionsRestrictions().toArray(new String[0]));
 
         ConfigSecurity configSecurity = new ConfigSecurity();
-        configSecurity.setReadOnly(readOnly);
+        configSecurity.setReadOnly(config.isReadOnly());
         configSecurity.setExtensions(configExtensions);
 
         ConfigRoot configRoot = new ConfigRoot();
@@ -275,6 +329,16 @@ public abstract class AbstractFileManager implements IFileManager {
 
     @Override
     public List<FileData> actionReadFolder(String path, String type) throws FileManagerException {
+        return actionReadFolder(path, type, null, null, 0, 0);
+    }
+
+    @Override
+    public List<FileData> actionReadFolder(String path, String type, String sort, String order, int offset, int limit) throws FileManagerException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileData actionStreamFolder(HttpServletResponse response, String path, String type, int offset, int limit) throws FileManagerException {
         throw new UnsupportedOperationException();
     }
 
@@ -295,6 +359,11 @@ public abstract class AbstractFileManager implements IFileManager {
 
     @Override
     public FileData actionGetImage(HttpServletResponse response, String path, Boolean thumbnail) throws FileManagerException {
+        return actionGetImage(response, path, thumbnail, 0);
+    }
+
+    @Override
+    public FileData actionGetImage(HttpServletResponse response, String path, Boolean thumbnail, int size) throws FileManagerException {
         throw new UnsupportedOperationException();
     }
 
@@ -320,6 +389,11 @@ public abstract class AbstractFileManager implements IFileManager {
 
     @Override
     public FileData actionDownload(HttpServletResponse response, String path) throws FileManagerException {
+        return actionDownload(null, response, path);
+    }
+
+    @Override
+    public FileData actionDownload(HttpServletRequest request, HttpServletResponse response, String path) throws FileManagerException {
         throw new UnsupportedOperationException();
     }
 
@@ -344,48 +418,34 @@ public abstract class AbstractFileManager implements IFileManager {
     }
 
     protected final boolean isAllowedImageExt(String ext) {
-        return Arrays.asList(propertiesConfig.getProperty("images.extensions").split(",")).contains(ext.toLowerCase());
+        return getConfig().isImageExtension(ext.toLowerCase());
     }
 
     protected final boolean isAllowedFileExtension(String file) {
         String extension = FileUtils.getExtension(file).toLowerCase();
 
-        boolean policyAllow = Boolean.parseBoolean(propertiesConfig.getProperty("extensions.policy.allow"));
-        List<String> restrictions = Arrays.asList(propertiesConfig.getProperty("extensions.restrictions").split(","));
-
-        if (policyAllow) {
-            return restrictions.contains(extension);
-        } else {
-            return !restrictions.contains(extension);
-        }
+        FileManagerConfig config = getConfig();
+        return config.isExtensionsPolicyAllow() == config.isExtensionRestricted(extension);
     }
 
     protected final boolean isAllowedPattern(String name, boolean isDir) throws FileManagerException {
 
-        boolean policyAllow = Boolean.parseBoolean(propertiesConfig.getProperty("patterns.policy.allow"));
-        try {
-            if (isDir) {
-                List<String> restrictionsFolder = Arrays.asList(propertiesConfig.getProperty("patterns.restrictions.folder").split(","));
-                boolean isMatch = false;
-                for (String regex : restrictionsFolder) {
-                    if (name.matches(regex)) isMatch = true;
-                }
-
-                return policyAllow == isMatch;
+        FileManagerConfig config = getConfig();
+        RestrictionMatcher restrictions = isDir ? config.getFolderRestrictions() : config.getFileRestrictions();
+        if (restrictions == null) {
+            // the syntax error has been logged when the configuration was parsed
+            throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
+        }
 
-            } else {
-                List<String> restrictionsFile = Arrays.asList((propertiesConfig.getProperty("patterns.restrictions.file").split(",")));
-                boolean isMatch = false;
-                for (String regex : restrictionsFile) {
-                    if (name.matches(regex)) isMatch = true;
-                }
+        return config.isPatternsPolicyAllow() == restrictions.matches(name);
+    }
 
-                return policyAllow == isMatch;
-            }
-        } catch (PatternSyntaxException e) {
-            logger.error("Regex Dir Syntax Exception : " + propertiesConfig.getProperty("excluded_dirs_REGEXP"), e);
+    protected final long getUploadFileSizeLimit() throws FileManagerException {
+        Long uploadFileSizeLimit = getConfig().getUploadFileSizeLimit();
+        if (uploadFileSizeLimit == null) {
             throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
         }
+        return uploadFileSizeLimit;
     }
 
     protected void checkPath(File file) throws FileManagerException {
@@ -417,7 +477,7 @@ public abstract class AbstractFileManager implements IFileManager {
 
     protected void checkWritePermission(File file) throws FileManagerException {
 
-        if (readOnly) {
+        if (getConfig().isReadOnly() || readOnly) {
             throw new FileManagerException(ClientErrorMessage.NOT_ALLOWED);
         }
 
@@ -450,16 +510,95 @@ public abstract class AbstractFileManager implements IFileManager {
     }
 
     protected final BufferedImage generateThumbnail(BufferedImage source) {
-        return Scalr.resize(source, Scalr.Method.AUTOMATIC, Scalr.Mode.FIT_TO_WIDTH, Integer.parseInt(propertiesConfig.getProperty("images.thumbnail.maxWidth")), Integer.parseInt(propertiesConfig.getProperty("images.thumbnail.maxHeight")), Scalr.OP_ANTIALIAS);
+        FileManagerConfig config = getConfig();
+        return Scalr.resize(source, Scalr.Method.AUTOMATIC, Scalr.Mode.FIT_TO_WIDTH, config.getThumbnailMaxWidth(), config.getThumbnailMaxHeight(), Scalr.OP_ANTIALIAS);
+    }
+
+    /**
+     * @return the image reduced to fit in a square of this size, or the image itself if it already fits
+     */
+    protected final BufferedImage generateThumbnail(BufferedImage source, int size) {
+        if (source.getWidth() <= size && source.getHeight() <= size) {
+            return source;
+        }
+        return Scalr.resize(source, Scalr.Method.AUTOMATIC, Scalr.Mode.AUTOMATIC, size, size, Scalr.OP_ANTIALIAS);
+    }
+
+    /**
+     * Starts a success response whose data array is written item by item.
+     */
+    protected JsonStreamWriter generateStreamResponse(HttpServletResponse response) throws IOException {
+        response.setStatus(200);
+        response.addHeader("Content-Type", "application/json; charset=utf-8");
+
+        return new JsonStreamWriter(JsonUtils.getGson(), response.getWriter());
+    }
+
+    /**
+     * Sorts a listing by "name", "size" or "modified". The folders have no size: they come first in an ascending sort
+     * by size, and last in a descending one.
+     *
+     * @param order "desc" for a descending sort, "asc" or empty for an ascending one
+     */
+    protected static void sortFileData(List<FileData> fileDataList, String sort, String order) throws FileManagerException {
+        if (!StringUtils.isEmpty(order) && !"asc".equals(order) && !"desc".equals(order)) {
+            throw new FileManagerException(ClientErrorMessage.INVALID_VAR, Collections.singletonList("order"));
+        }
+
+        Comparator<FileData> comparator;
+        switch (sort) {
+            case "name":
+                comparator = new Comparator<FileData>() {
+                    @Override
+                    public int compare(FileData o1, FileData o2) {
+                        return o1.getAttributes().getName().compareToIgnoreCase(o2.getAttributes().getName());
+                    }
+                };
+                break;
+            case "size":
+                comparator = new Comparator<FileData>() {
+                    @Override
+                    public int compare(FileData o1, FileData o2) {
+                        return Long.compare(getSize(o1), getSize(o2));
+                    }
+
+                    private long getSize(FileData fileData) {
+                        Long size = fileData.getAttributes().getSize();
+                        return size == null ? -1 : size;
+                    }
+                };
+                break;
+            case "modified":
+                comparator = new Comparator<FileData>() {
+                    @Override
+                    public int compare(FileData o1, FileData o2) {
+                        return Long.compare(o1.getAttributes().getModified(), o2.getAttributes().getModified());
+                    }
+                };
+                break;
+            default:
+                throw new FileManagerException(ClientErrorMessage.INVALID_VAR, Collections.singletonList("sort"));
+        }
+
+        Collections.sort(fileDataList, "desc".equals(order) ? Collections.reverseOrder(comparator) : comparator);
+    }
+
+    /**
+     * @param limit the maximum number of items, 0 for no limit
+     */
+    protected static List<FileData> paginateFileData(List<FileData> fileDataList, int offset, int limit) {
+        int from = Math.min(Math.max(offset, 0), fileDataList.size());
+        int to = limit > 0 ? (int) Math.min((long) from + limit, fileDataList.size()) : fileDataList.size();
+        return new ArrayList<>(fileDataList.subList(from, to));
     }
 
     protected String normalizeName(String input) {
 
-        boolean normalizeFilename = Boolean.parseBoolean(propertiesConfig.getProperty("normalizeFilename"));
+        FileManagerConfig config = getConfig();
 
-        if (!normalizeFilename) return input;
+        if (!config.isNormalizeFilename()) return input;
 
-        boolean charsLatinOnly = Boolean.parseBoolean(propertiesConfig.getProperty("charsLatinOnly"));
+        boolean charsLatinOnly = config.isCharsLatinOnly();
 
         String nowhitespace = WHITESPACE.matcher(input).replaceAll("_");
         String normalized = Normalizer.normalize(nowhitespace, Normalizer.Form.NFD);
@@ -467,11 +606,95 @@ public abstract class AbstractFileManager implements IFileManager {
         return charsLatinOnly ? NONLATIN.matcher(normalized).replaceAll("") : normalized;
     }
 
+    /**
+     * @return the configuration of the request handled by the current thread, or the current one outside of a request
+     */
+    protected FileManagerConfig getConfig() {
+        FileManagerConfig config = requestConfig.get();
+        return config != null ? config : getCurrentConfig();
+    }
+
+    /**
+     * Makes {@link #getConfig()} return the given configuration in the current thread, for the tasks run on behalf of
+     * a request.
+     *
+     * @param config the configuration, or null to use the current one
+     * @return the previous configuration of the thread, to restore once the task is done
+     */
+    protected static FileManagerConfig pinConfig(FileManagerConfig config) {
+        FileManagerConfig previous = requestConfig.get();
+        if (config == null) {
+            requestConfig.remove();
+        } else {
+            requestConfig.set(config);
+        }
+        return previous;
+    }
+
+    /**
+     * @return the configuration, parsed again when the properties of this file manager have been changed, or when the
+     * config files have been reloaded (keeping the properties set on this file manager)
+     */
+    private FileManagerConfig getCurrentConfig() {
+        ConfigState state = configState;
+        FileManagerConfig base = FileManagerConfigLoader.getInstance().getConfig();
+        if (state.base == base && state.properties.equals(propertiesConfig)) {
+            return state.config;
+        }
+        synchronized (this) {
+            state = configState;
+            Properties properties = propertiesConfig;
+            if (state.base != base) {
+                // the properties which differ from the previous config files have been set on this file manager
+                Properties reloaded = base.getProperties();
+                for (String key : properties.stringPropertyNames()) {
+                    String value = properties.getProperty(key);
+                    if (!value.equals(state.base.getProperty(key))) {
+                        reloaded.setProperty(key, value);
+                    }
+                }
+                properties.clear();
+                properties.putAll(reloaded);
+            }
+            if (state.base != base || !state.properties.equals(properties)) {
+                applyProperties(base, properties);
+            }
+            return configState.config;
+        }
+    }
+
+    /**
+     * @return the configuration properties, the changes apply from the next request
+     */
     public Properties getPropertiesConfig() {
         return propertiesConfig;
     }
 
-    public void setPropertiesConfig(Properties propertiesConfig) {
+    /**
+     * Replaces the configuration properties, and parses them at once.
+     */
+    public synchronized void setPropertiesConfig(Properties propertiesConfig) {
         this.propertiesConfig = propertiesConfig;
+        applyProperties(FileManagerConfigLoader.getInstance().getConfig(), propertiesConfig);
+    }
+
+    private void applyProperties(FileManagerConfig base, Properties properties) {
+        FileManagerConfig config = new FileManagerConfig(properties);
+        configState = new ConfigState(base, config.getProperties(), config);
+        readOnly = config.isReadOnly();
+    }
+
+    private static final class ConfigState {
+        // the config files it was built from
+        private final FileManagerConfig base;
+        // the properties it was parsed from
+        private final Properties properties;
+        private final FileManagerConfig config;
+
+        ConfigState(FileManagerConfig base, Properties properties, FileManagerConfig config) {
+            this.base = base;
+            this.properties = properties;
+            this.config = config;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,438 @@
+package com.fabriceci.fmc;
+
+import com.fabriceci.fmc.util.RestrictionMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Immutable snapshot of the configuration, parsed once from the properties.
+ * <p>
+ * The values read for each listed file (extensions, patterns...) are kept parsed, the other ones can be read with
+ * {@link #getProperty(String)}.
+ */
+public final class FileManagerConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileManagerConfig.class);
+
+    private final Properties properties;
+
+    private final String fileRoot;
+    private final boolean readOnly;
+    private final boolean allowFolderDownload;
+    private final boolean charsLatinOnly;
+    private final boolean normalizeFilename;
+    private final boolean extensionsPolicyAllow;
+    private final List<String> extensionsRestrictions;
+    private final Set<String> extensionsRestrictionsSet;
+    private final boolean patternsPolicyAllow;
+    private final RestrictionMatcher fileRestrictions;
+    private final RestrictionMatcher folderRestrictions;
+    private final Long uploadFileSizeLimit;
+    private final int uploadChunksExpiration;
+    private final int uploadParallelism;
+    private final int uploadQueueSize;
+    private final Set<String> imageExtensions;
+    private final boolean thumbnailEnabled;
+    private final int thumbnailMaxWidth;
+    private final int thumbnailMaxHeight;
+    private final String thumbnailDir;
+    private final int thumbnailBackgroundThreads;
+    private final int thumbnailBackgroundQueueSize;
+    private final List<Integer> thumbnailSizes;
+    private final int thumbnailQuality;
+    private final boolean thumbnailPacked;
+    private final long thumbnailCacheSize;
+    private final boolean thumbnailCacheFrequencyBased;
+    private final int thumbnailSweepBatchSize;
+    private final int imageProcessingConcurrency;
+    private final long imageProcessingMemory;
+    private final int imageProcessingQueueSize;
+    private final int imageProcessingTimeout;
+    private final boolean dimensionsCacheEnabled;
+    private final int dimensionsCacheSize;
+    private final int readFolderParallelism;
+    private final boolean configReloadEnabled;
+    private final boolean asyncEnabled;
+    private final int asyncTimeout;
+    private final int zipParallelism;
+    private final Set<String> zipStoredExtensions;
+    private final boolean zipCacheEnabled;
+    private final long zipCacheSize;
+    private final boolean zipResumable;
+
+    public FileManagerConfig(Properties source) {
+        properties = new Properties();
+        properties.putAll(source);
+
+        fileRoot = properties.getProperty("fileRoot", "");
+        readOnly = getBoolean("readOnly");
+        allowFolderDownload = getBoolean("allowFolderDownload");
+        charsLatinOnly = getBoolean("charsLatinOnly");
+        normalizeFilename = getBoolean("normalizeFilename");
+
+        extensionsPolicyAllow = getBoolean("extensions.policy.allow");
+        extensionsRestrictions = getList("extensions.restrictions");
+        extensionsRestrictionsSet = new HashSet<>(extensionsRestrictions);
+
+        patternsPolicyAllow = getBoolean("patterns.policy.allow");
+        fileRestrictions = getRestrictionMatcher("patterns.restrictions.file");
+        folderRestrictions = getRestrictionMatcher("patterns.restrictions.folder");
+
+        uploadFileSizeLimit = getLong("upload.fileSizeLimit");
+        uploadChunksExpiration = getInt("upload.chunks.expiration", 86400);
+        uploadParallelism = getInt("upload.parallelism", 1);
+        uploadQueueSize = getInt("upload.queueSize", 16);
+
+        imageExtensions = new HashSet<>(getList("images.extensions"));
+        thumbnailEnabled = getBoolean("images.thumbnail.enabled");
+        thumbnailMaxWidth = getInt("images.thumbnail.maxWidth", 100);
+        thumbnailMaxHeight = getInt("images.thumbnail.maxHeight", 100);
+        thumbnailDir = properties.getProperty("images.thumbnail.dir");
+        thumbnailBackgroundThreads = getInt("images.thumbnail.background.threads", 0);
+        thumbnailBackgroundQueueSize = getInt("images.thumbnail.background.queueSize", 1000);
+        thumbnailSizes = getSizes("images.thumbnail.sizes");
+        thumbnailQuality = getInt("images.thumbnail.quality", 85);
+        thumbnailPacked = "pack".equals(properties.getProperty("images.thumbnail.store"));
+        Long thumbnailCacheSizeValue = getLong("images.thumbnail.cache.size");
+        thumbnailCacheSize = thumbnailCacheSizeValue != null ? thumbnailCacheSizeValue : 1073741824L;
+        thumbnailCacheFrequencyBased = "lfu".equalsIgnoreCase(properties.getProperty("images.thumbnail.cache.policy"));
+        thumbnailSweepBatchSize = getInt("images.thumbnail.sweep.batchSize", 1000);
+        imageProcessingConcurrency = getInt("images.processing.concurrency", 4);
+        Long imageProcessingMemoryValue = getLong("images.processing.memory");
+        // a quarter of the heap by default
+        imageProcessingMemory = imageProcessingMemoryValue != null && imageProcessingMemoryValue > 0 ? imageProcessingMemoryValue : Runtime.getRuntime().maxMemory() / 4;
+        imageProcessingQueueSize = getInt("images.processing.queueSize", 50);
+        imageProcessingTimeout = getInt("images.processing.timeout", 30);
+        dimensionsCacheEnabled = getBoolean("images.dimensions.cache.enabled");
+        dimensionsCacheSize = getInt("images.dimensions.cache.size", 10000);
+
+        readFolderParallelism = getInt("readfolder.parallelism", 1);
+        configReloadEnabled = getBoolean("config.reload.enabled");
+        asyncEnabled = getBoolean("async.enabled");
+        asyncTimeout = getInt("async.timeout", 3600);
+        zipParallelism = getInt("zip.parallelism", 1);
+        zipStoredExtensions = Collections.unmodifiableSet(new HashSet<>(getList("zip.storedExtensions")));
+        zipCacheEnabled = getBoolean("zip.cache.enabled");
+        Long zipCacheSizeValue = getLong("zip.cache.size");
+        zipCacheSize = zipCacheSizeValue != null ? zipCacheSizeValue : 1073741824L;
+        zipResumable = getBoolean("zip.resumable");
+    }
+
+    public String getProperty(String key) {
+        return properties.getProperty(key);
+    }
+
+    public String getProperty(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
+    /**
+     * @return a copy of the properties of this snapshot
+     */
+    public Properties getProperties() {
+        Properties copy = new Properties();
+        copy.putAll(properties);
+        return copy;
+    }
+
+    public String getFileRoot() {
+        return fileRoot;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public boolean isAllowFolderDownload() {
+        return allowFolderDownload;
+    }
+
+    public boolean isCharsLatinOnly() {
+        return charsLatinOnly;
+    }
+
+    public boolean isNormalizeFilename() {
+        return normalizeFilename;
+    }
+
+    public boolean isExtensionsPolicyAllow() {
+        return extensionsPolicyAllow;
+    }
+
+    public List<String> getExtensionsRestrictions() {
+        return extensionsRestrictions;
+    }
+
+    public boolean isExtensionRestricted(String extension) {
+        return extensionsRestrictionsSet.contains(extension);
+    }
+
+    public boolean isPatternsPolicyAllow() {
+        return patternsPolicyAllow;
+    }
+
+    /**
+     * @return the matcher of the file name patterns, or null if one of them is not a valid regex
+     */
+    public RestrictionMatcher getFileRestrictions() {
+        return fileRestrictions;
+    }
+
+    /**
+     * @return the matcher of the folder name patterns, or null if one of them is not a valid regex
+     */
+    public RestrictionMatcher getFolderRestrictions() {
+        return folderRestrictions;
+    }
+
+    /**
+     * @return the upload size limit, or null if the value is not a number
+     */
+    public Long getUploadFileSizeLimit() {
+        return uploadFileSizeLimit;
+    }
+
+    /**
+     * @return the time after which a chunked upload not updated is removed, in seconds
+     */
+    public int getUploadChunksExpiration() {
+        return uploadChunksExpiration;
+    }
+
+    public int getUploadParallelism() {
+        return uploadParallelism;
+    }
+
+    /**
+     * @return the maximum number of received files waiting to be processed, per upload
+     */
+    public int getUploadQueueSize() {
+        return uploadQueueSize;
+    }
+
+    public boolean isImageExtension(String extension) {
+        return imageExtensions.contains(extension);
+    }
+
+    public boolean isThumbnailEnabled() {
+        return thumbnailEnabled;
+    }
+
+    public int getThumbnailMaxWidth() {
+        return thumbnailMaxWidth;
+    }
+
+    public int getThumbnailMaxHeight() {
+        return thumbnailMaxHeight;
+    }
+
+    public String getThumbnailDir() {
+        return thumbnailDir;
+    }
+
+    /**
+     * @return the number of threads generating the thumbnails of the new images in the background, 0 to generate them
+     * on their first request only
+     */
+    public int getThumbnailBackgroundThreads() {
+        return thumbnailBackgroundThreads;
+    }
+
+    public int getThumbnailBackgroundQueueSize() {
+        return thumbnailBackgroundQueueSize;
+    }
+
+    /**
+     * @return the sizes of the larger thumbnail renditions, in ascending order
+     */
+    public List<Integer> getThumbnailSizes() {
+        return thumbnailSizes;
+    }
+
+    /**
+     * @return the quality of the thumbnails encoded as JPEG, in percent
+     */
+    public int getThumbnailQuality() {
+        return thumbnailQuality;
+    }
+
+    /**
+     * @return true to store the thumbnails in pack files, false to store each one in its own file
+     */
+    public boolean isThumbnailPacked() {
+        return thumbnailPacked;
+    }
+
+    /**
+     * @return the maximum total size of the thumbnails, in bytes, 0 for no limit
+     */
+    public long getThumbnailCacheSize() {
+        return thumbnailCacheSize;
+    }
+
+    /**
+     * @return true to remove the least frequently used thumbnails first, false for the least recently used ones
+     */
+    public boolean isThumbnailCacheFrequencyBased() {
+        return thumbnailCacheFrequencyBased;
+    }
+
+    /**
+     * @return the number of thumbnails checked by each periodic sweep
+     */
+    public int getThumbnailSweepBatchSize() {
+        return thumbnailSweepBatchSize;
+    }
+
+    /**
+     * @return the maximum number of images decoded at once
+     */
+    public int getImageProcessingConcurrency() {
+        return imageProcessingConcurrency;
+    }
+
+    /**
+     * @return the maximum memory of the bitmaps of the images being processed, in bytes
+     */
+    public long getImageProcessingMemory() {
+        return imageProcessingMemory;
+    }
+
+    public int getImageProcessingQueueSize() {
+        return imageProcessingQueueSize;
+    }
+
+    /**
+     * @return the maximum time an image waits to be processed, in seconds
+     */
+    public int getImageProcessingTimeout() {
+        return imageProcessingTimeout;
+    }
+
+    public boolean isDimensionsCacheEnabled() {
+        return dimensionsCacheEnabled;
+    }
+
+    public int getDimensionsCacheSize() {
+        return dimensionsCacheSize;
+    }
+
+    public int getReadFolderParallelism() {
+        return readFolderParallelism;
+    }
+
+    public boolean isConfigReloadEnabled() {
+        return configReloadEnabled;
+    }
+
+    public boolean isAsyncEnabled() {
+        return asyncEnabled;
+    }
+
+    /**
+     * @return the maximum time to send a file with non-blocking writes, in seconds
+     */
+    public int getAsyncTimeout() {
+        return asyncTimeout;
+    }
+
+    public int getZipParallelism() {
+        return zipParallelism;
+    }
+
+    /**
+     * @return the extensions of the files added to the folder archives without compression
+     */
+    public Set<String> getZipStoredExtensions() {
+        return zipStoredExtensions;
+    }
+
+    public boolean isZipCacheEnabled() {
+        return zipCacheEnabled;
+    }
+
+    /**
+     * @return the maximum total size of the cached folder archives, in bytes
+     */
+    public long getZipCacheSize() {
+        return zipCacheSize;
+    }
+
+    /**
+     * @return true to send the folder archives uncompressed, with a layout known up front so ranges can be served
+     */
+    public boolean isZipResumable() {
+        return zipResumable;
+    }
+
+    private boolean getBoolean(String key) {
+        return Boolean.parseBoolean(properties.getProperty(key));
+    }
+
+    private int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Wrong format for the property: '" + key + "', using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the value, or null if the property is missing or empty
+     */
+    private Long getLong(String key) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Wrong format for the property: '" + key + "'");
+            return null;
+        }
+    }
+
+    private List<String> getList(String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(value.split(",")));
+    }
+
+    private List<Integer> getSizes(String key) {
+        Set<Integer> sizes = new TreeSet<>();
+        for (String value : getList(key)) {
+            if (value.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                int size = Integer.parseInt(value.trim());
+                if (size > 0) {
+                    sizes.add(size);
+                }
+            } catch (NumberFormatException e) {
+                logger.error("Wrong format for the property: '" + key + "', ignoring " + value);
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<>(sizes));
+    }
+
+    private RestrictionMatcher getRestrictionMatcher(String key) {
+        try {
+            return RestrictionMatcher.compile(getList(key));
+        } catch (PatternSyntaxException e) {
+            logger.error("Regex Syntax Exception in '" + key + "'", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.fabriceci.fmc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.*;
+import java.util.Properties;
+
+/**
+ * Loads the configuration files from the classpath once, and reloads them when they change if "config.reload.enabled"
+ * is set. The files are then watched by a thread, stopped by {@link #shutdown()}.
+ * <p>
+ * Each load publishes a new {@link FileManagerConfig} snapshot at once, the readers never take a lock.
+ */
+public final class FileManagerConfigLoader implements Closeable {
+
+    final static String CONFIG_DEFAULT_PROPERTIES = "filemanager.config.default.properties";
+    final static String CONFIG_CUSTOM_PROPERTIES = "filemanager.config.properties";
+    // waits for the editors to finish writing the file before reloading it
+    private static final long RELOAD_DELAY_MS = 200;
+
+    private static final Logger logger = LoggerFactory.getLogger(FileManagerConfigLoader.class);
+
+    private static FileManagerConfigLoader instance;
+
+    private final ClassLoader classLoader;
+    private volatile FileManagerConfig config;
+    private WatchService watchService;
+    private Thread watcher;
+
+    FileManagerConfigLoader(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+        reload();
+        if (config.isConfigReloadEnabled()) {
+            startWatching();
+        }
+    }
+
+    /**
+     * @return the loader of the configuration files visible from the context class loader of the first caller
+     */
+    public static synchronized FileManagerConfigLoader getInstance() {
+        if (instance == null) {
+            instance = new FileManagerConfigLoader(Thread.currentThread().getContextClassLoader());
+        }
+        return instance;
+    }
+
+    /**
+     * Stops watching the configuration files, the files are loaded again on the next call to {@link #getInstance()}.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            try {
+                instance.close();
+            } catch (IOException e) {
+                logger.warn("Unable to stop watching the configuration files", e);
+            }
+            instance = null;
+        }
+    }
+
+    /**
+     * @return the configuration read from the files, without the options of the file managers
+     */
+    public FileManagerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Reads the configuration files and publishes the new configuration. If a file cannot be read, the previous
+     * configuration is kept.
+     */
+    public synchronized void reload() {
+        Properties properties = new Properties();
+        try {
+            // default config file
+            if (!load(properties, CONFIG_DEFAULT_PROPERTIES)) {
+                logger.error("Unable to find " + CONFIG_DEFAULT_PROPERTIES);
+            }
+            // custom config file if exists
+            load(properties, CONFIG_CUSTOM_PROPERTIES);
+        } catch (IOException e) {
+            logger.error("Unable to read the configuration, keeping the previous one", e);
+            if (config != null) {
+                return;
+            }
+        }
+        config = new FileManagerConfig(properties);
+    }
+
+    /**
+     * Stops watching the configuration files, and waits for the watching thread to end.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+        if (watcher != null) {
+            try {
+                watcher.join(RELOAD_DELAY_MS * 10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            watcher = null;
+        }
+    }
+
+    private boolean load(Properties properties, String name) throws IOException {
+        try (InputStream inputStream = classLoader.getResourceAsStream(name)) {
+            if (inputStream == null) {
+                return false;
+            }
+            properties.load(inputStream);
+            return true;
+        }
+    }
+
+    private void startWatching() {
+        // the custom file may not exist yet, it is expected next to the default one
+        Path directory = getDirectory(CONFIG_CUSTOM_PROPERTIES);
+        if (directory == null) {
+            directory = getDirectory(CONFIG_DEFAULT_PROPERTIES);
+        }
+        if (directory == null) {
+            logger.warn("The configuration files are not in a directory, they will not be reloaded");
+            return;
+        }
+
+        try {
+            watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            logger.error("Unable to watch the configuration files in " + directory, e);
+            return;
+        }
+
+        watcher = new Thread(new Watcher(watchService), "fmc-config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private Path getDirectory(String name) {
+        URL url = classLoader.getResource(name);
+        if (url == null || !"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return Paths.get(url.toURI()).getParent();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private class Watcher implements Runnable {
+
+        private final WatchService watchService;
+
+        Watcher(WatchService watchService) {
+            this.watchService = watchService;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    Thread.sleep(RELOAD_DELAY_MS);
+
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Object context = event.context();
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW || context == null) {
+                            changed = true;
+                            continue;
+                        }
+                        String fileName = context.toString();
+                        if (fileName.equals(CONFIG_CUSTOM_PROPERTIES) || fileName.equals(CONFIG_DEFAULT_PROPERTIES)) {
+                            changed = true;
+                        }
+                    }
+
+                    if (changed) {
+                        logger.info("Reloading the configuration");
+                        reload();
+                    }
+                    if (!key.reset()) {
+                        logger.warn("The configuration directory is no longer watched");
+                        return;
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // stopped
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.fabriceci.fmc;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Stops the background threads of the file managers with the application, so they do not outlive a redeployment.
+ * Register it in the web.xml, with the @WebListener annotation on a subclass, or as a bean with Spring.
+ */
+public class FileManagerContextListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        AbstractFileManager.shutdown();
+    }
+}
@@ -20,6 +20,10 @@ public interface IFileManager {
 
     List<FileData> actionReadFolder(String path, String type) throws FileManagerException;
 
+    List<FileData> actionReadFolder(String path, String type, String sort, String order, int offset, int limit) throws FileManagerException;
+
+    FileData actionStreamFolder(HttpServletResponse response, String path, String type, int offset, int limit) throws FileManagerException;
+
     FileData actionMove(String sourcePath, String targetPath) throws FileManagerException;
 
     FileData actionDelete(String path) throws FileManagerException;
@@ -28,6 +32,8 @@ public interface IFileManager {
 
     FileData actionGetImage(HttpServletResponse response, String path, Boolean thumbnail) throws FileManagerException;
 
+    FileData actionGetImage(HttpServletResponse response, String path, Boolean thumbnail, int size) throws FileManagerException;
+
     // TO test :
 
     Object actionSeekFolder(String folderPath, String term) throws FileManagerException;
@@ -42,6 +48,8 @@ public interface IFileManager {
 
     FileData actionDownload(HttpServletResponse response, String path) throws FileManagerException;
 
+    FileData actionDownload(HttpServletRequest request, HttpServletResponse response, String path) throws FileManagerException;
+
     List<FileData> actionUpload(HttpServletRequest request, String path) throws FileManagerException;
 
     FileData actionSaveFile(String pathParam, String contentParam) throws FileManagerException;
@@ -1,21 +1,31 @@
 package com.fabriceci.fmc;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.fabriceci.fmc.util.FileManagerUtils;
+import com.fabriceci.fmc.util.RandomAccessContent;
 import com.fabriceci.fmc.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
 public class MultipartFileSender {
@@ -23,12 +33,29 @@ public class MultipartFileSender {
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private static final int DEFAULT_BUFFER_SIZE = 20480; // ..bytes = 20KB.
+    private static final int COPY_BUFFER_SIZE = 262144; // ..bytes = 256KB.
+    // below, the file is written from the heap, as Tomcat's default servlet does
+    private static final long SENDFILE_MIN_SIZE = 49152; // ..bytes = 48KB.
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
     private static final long DEFAULT_EXPIRE_TIME = 604800000L; // ..ms = 1 week.
     private static final String MULTIPART_BOUNDARY = "MULTIPART_BYTERANGES";
+    private static final String CRLF = "\r\n";
 
     Path filepath;
     HttpServletRequest request;
     HttpServletResponse response;
+    boolean async;
+    long asyncTimeout;
+    String attachmentName;
+    RandomAccessContent content;
+    String contentName;
+    long contentLastModified;
+    String contentETag;
+    // true once the content is handed to the code writing it, which closes it
+    private boolean contentSent;
 
     public MultipartFileSender() {
     }
@@ -45,6 +72,22 @@ public class MultipartFileSender {
         return new MultipartFileSender().setFilepath(Paths.get(uri));
     }
 
+    /**
+     * Sends content which is not a file, such as an archive built on the fly. The content is closed once sent.
+     *
+     * @param fileName     the name of the content, which gives its type
+     * @param lastModified the last modification time of the content, in milliseconds
+     * @param eTag         a value which changes when the content changes, so the resumed downloads are validated
+     */
+    public static MultipartFileSender fromContent(RandomAccessContent content, String fileName, long lastModified, String eTag) {
+        MultipartFileSender sender = new MultipartFileSender();
+        sender.content = content;
+        sender.contentName = fileName;
+        sender.contentLastModified = lastModified;
+        sender.contentETag = eTag;
+        return sender;
+    }
+
     //** internal setter **//
     private MultipartFileSender setFilepath(Path filepath) {
         this.filepath = filepath;
@@ -61,29 +104,72 @@ public class MultipartFileSender {
         return this;
     }
 
+    /**
+     * @param async   true to write the file with non-blocking writes when the request supports it, the method then
+     *                returns before the file is sent
+     * @param timeout the maximum time to send the file with non-blocking writes, in milliseconds, the response is
+     *                then closed
+     */
+    public MultipartFileSender withAsync(boolean async, long timeout) {
+        this.async = async;
+        this.asyncTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * Sends the file as an attachment, to be saved with the given name.
+     */
+    public MultipartFileSender asAttachment(String fileName) {
+        attachmentName = fileName;
+        return this;
+    }
+
     public void serveResource() throws Exception {
-        if (response == null || request == null) {
-            return;
+        try {
+            serve();
+        } finally {
+            if (content != null && !contentSent) {
+                content.close();
+            }
         }
+    }
 
-        if (!Files.exists(filepath)) {
-            logger.error("File doesn't exist at URI : {}", filepath.toAbsolutePath().toString());
-            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    private void serve() throws Exception {
+        if (response == null || request == null) {
             return;
         }
 
-        Long length = Files.size(filepath);
-        String fileName = filepath.getFileName().toString();
-        FileTime lastModifiedObj = Files.getLastModifiedTime(filepath);
+        long length;
+        String fileName;
+        long lastModified;
+        String eTag;
+
+        if (content != null) {
+            length = content.size();
+            fileName = contentName;
+            lastModified = contentLastModified / 1000;
+            eTag = contentETag;
+        } else {
+            if (!Files.exists(filepath)) {
+                logger.error("File doesn't exist at URI : {}", filepath.toAbsolutePath().toString());
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+
+            length = Files.size(filepath);
+            fileName = filepath.getFileName().toString();
+            FileTime lastModifiedObj = Files.getLastModifiedTime(filepath);
 
-        if (StringUtils.isEmpty(fileName) || lastModifiedObj == null) {
-            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            return;
+            if (StringUtils.isEmpty(fileName) || lastModifiedObj == null) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                return;
+            }
+
+            lastModified = lastModifiedObj.toMillis() / 1000;
+            eTag = fileName;
         }
 
-        long lastModified = lastModifiedObj.toMillis() / 1000;
-        String filename = filepath.toFile().getName();
-        String fileExt = filename.substring(filename.lastIndexOf(".") + 1);
+        String fileExt = fileName.substring(fileName.lastIndexOf(".") + 1);
         String contentType = FileManagerUtils.getMimeTypeByExt(fileExt);
 
 
@@ -91,8 +177,8 @@ public class MultipartFileSender {
 
         // If-None-Match header should contain "*" or ETag. If so, then return 304.
         String ifNoneMatch = request.getHeader("If-None-Match");
-        if (ifNoneMatch != null && HttpUtils.matches(ifNoneMatch, fileName)) {
-            response.setHeader("ETag", fileName); // Required in 304.
+        if (ifNoneMatch != null && HttpUtils.matches(ifNoneMatch, eTag)) {
+            response.setHeader("ETag", eTag); // Required in 304.
             response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
             return;
         }
@@ -101,7 +187,7 @@ public class MultipartFileSender {
         // This header is ignored if any If-None-Match header is specified.
         long ifModifiedSince = request.getDateHeader("If-Modified-Since");
         if (ifNoneMatch == null && ifModifiedSince != -1 && ifModifiedSince + 1000 > lastModified) {
-            response.setHeader("ETag", fileName); // Required in 304.
+            response.setHeader("ETag", eTag); // Required in 304.
             response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
             return;
         }
@@ -110,7 +196,7 @@ public class MultipartFileSender {
 
         // If-Match header should contain "*" or ETag. If not, then return 412.
         String ifMatch = request.getHeader("If-Match");
-        if (ifMatch != null && !HttpUtils.matches(ifMatch, fileName)) {
+        if (ifMatch != null && !HttpUtils.matches(ifMatch, eTag)) {
             response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
             return;
         }
@@ -140,7 +226,7 @@ public class MultipartFileSender {
             }
 
             String ifRange = request.getHeader("If-Range");
-            if (ifRange != null && !ifRange.equals(fileName)) {
+            if (ifRange != null && !ifRange.equals(eTag)) {
                 try {
                     long ifRangeTime = request.getDateHeader("If-Range"); // Throws IAE if invalid.
                     if (ifRangeTime != -1) {
@@ -187,9 +273,12 @@ public class MultipartFileSender {
         // If content type is unknown, then set the default value.
         // For all content types, see: http://www.w3schools.com/media/media_mimeref.asp
         // To add new content types, add new mime-mapping entry in web.xml.
+        if (attachmentName != null) {
+            disposition = "attachment";
+        }
         if (contentType == null) {
             contentType = "application/octet-stream";
-        } else if (!contentType.startsWith("image")) {
+        } else if (attachmentName == null && !contentType.startsWith("image")) {
             // Else, expect for images, determine content disposition. If content type is supported by
             // the browser, then set to inline, else attachment which will pop a 'save as' dialogue.
             String accept = request.getHeader("Accept");
@@ -200,66 +289,236 @@ public class MultipartFileSender {
         response.reset();
         response.setBufferSize(DEFAULT_BUFFER_SIZE);
         response.setHeader("Content-Type", contentType);
-        response.setHeader("Content-Disposition", disposition + ";filename=\"" + fileName + "\"");
+        response.setHeader("Content-Disposition", disposition + ";filename=\"" + (attachmentName != null ? attachmentName : fileName) + "\"");
         logger.debug("Content-Disposition : {}", disposition);
         response.setHeader("Accept-Ranges", "bytes");
-        response.setHeader("ETag", fileName);
+        response.setHeader("ETag", eTag);
         response.setDateHeader("Last-Modified", lastModified);
         response.setDateHeader("Expires", System.currentTimeMillis() + DEFAULT_EXPIRE_TIME);
 
         // Send requested file (part(s)) to client ------------------------------------------------
 
-        // Prepare streams.
-        try (RandomAccessFile input = new RandomAccessFile(filepath.toFile(), "r");
+        List<Segment> segments = new ArrayList<>();
+
+        if (ranges.isEmpty() || ranges.get(0) == full) {
+            // Return full file.
+            logger.info("Return full file");
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", "bytes " + full.start + "-" + full.end + "/" + full.total);
+            response.setHeader("Content-Length", String.valueOf(full.length));
+            segments.add(new Segment(full.start, full.length));
+
+        } else if (ranges.size() == 1) {
+
+            // Return single part of file.
+            Range r = ranges.get(0);
+            logger.info("Return 1 part of file : from ({}) to ({})", r.start, r.end);
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", "bytes " + r.start + "-" + r.end + "/" + r.total);
+            response.setHeader("Content-Length", String.valueOf(r.length));
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
+            segments.add(new Segment(r.start, r.length));
+
+        } else {
+
+            // Return multiple parts of file.
+            response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
+
+            for (Range r : ranges) {
+                logger.info("Return multi part of file : from ({}) to ({})", r.start, r.end);
+                // Add multipart boundary and header fields for every range.
+                segments.add(new Segment(CRLF
+                        + "--" + MULTIPART_BOUNDARY + CRLF
+                        + "Content-Type: " + contentType + CRLF
+                        + "Content-Range: bytes " + r.start + "-" + r.end + "/" + r.total + CRLF));
+                segments.add(new Segment(r.start, r.length));
+            }
+
+            // End with multipart boundary.
+            segments.add(new Segment(CRLF + "--" + MULTIPART_BOUNDARY + "--" + CRLF));
+        }
+
+        if (content == null && segments.size() == 1 && segments.get(0).length >= SENDFILE_MIN_SIZE
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // Tomcat sends the range itself once the servlet returns, from the file to the socket without copying it
+            // to the heap and without holding a thread
+            Segment segment = segments.get(0);
+            logger.debug("Sendfile : {}", filepath);
+            request.setAttribute(SENDFILE_FILENAME, filepath.toFile().getCanonicalPath());
+            request.setAttribute(SENDFILE_START, segment.start);
+            request.setAttribute(SENDFILE_END, segment.start + segment.length);
+            return;
+        }
+
+        RandomAccessContent input = content != null ? content : new FileContent(FileChannel.open(filepath, StandardOpenOption.READ));
+        contentSent = true;
+
+        if (async && request.isAsyncSupported()) {
+            // the container thread is released, the segments are written each time the client can receive more
+            AsyncContext asyncContext = request.startAsync();
+            // a large file may take longer than the default timeout
+            asyncContext.setTimeout(asyncTimeout);
+            AsyncSender sender = new AsyncSender(asyncContext, input, segments);
+            asyncContext.addListener(sender);
+            response.getOutputStream().setWriteListener(sender);
+            return;
+        }
+
+        try (RandomAccessContent channel = input;
              OutputStream output = response.getOutputStream()) {
 
-            if (ranges.isEmpty() || ranges.get(0) == full) {
-                // Return full file.
-                logger.info("Return full file");
-                response.setContentType(contentType);
-                response.setHeader("Content-Range", "bytes " + full.start + "-" + full.end + "/" + full.total);
-                response.setHeader("Content-Length", String.valueOf(full.length));
-                Range.copy(input, output, length, full.start, full.length);
-
-            } else if (ranges.size() == 1) {
-
-                // Return single part of file.
-                Range r = ranges.get(0);
-                logger.info("Return 1 part of file : from ({}) to ({})", r.start, r.end);
-                response.setContentType(contentType);
-                response.setHeader("Content-Range", "bytes " + r.start + "-" + r.end + "/" + r.total);
-                response.setHeader("Content-Length", String.valueOf(r.length));
-                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
-                // Copy single part range.
-                Range.copy(input, output, length, r.start, r.length);
-
-            } else {
-
-                // Return multiple parts of file.
-                response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
-                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
-
-                // Cast back to ServletOutputStream to get the easy println methods.
-                ServletOutputStream sos = (ServletOutputStream) output;
-
-                // Copy multi part range.
-                for (Range r : ranges) {
-                    logger.info("Return multi part of file : from ({}) to ({})", r.start, r.end);
-                    // Add multipart boundary and header fields for every range.
-                    sos.println();
-                    sos.println("--" + MULTIPART_BOUNDARY);
-                    sos.println("Content-Type: " + contentType);
-                    sos.println("Content-Range: bytes " + r.start + "-" + r.end + "/" + r.total);
-                    // Copy single part range of multi part range.
-                    Range.copy(input, output, length, r.start, r.length);
+            for (Segment segment : segments) {
+                if (segment.bytes != null) {
+                    output.write(segment.bytes);
+                } else {
+                    Range.copy(channel, output, segment.start, segment.length);
+                }
+            }
+
+            // the parts are not flushed one by one, only once everything is written
+            output.flush();
+        }
+
+    }
+
+    /**
+     * A file read through its channel.
+     */
+    private static class FileContent implements RandomAccessContent {
+        final FileChannel channel;
+
+        FileContent(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A part of the response: bytes, or a range of the file.
+     */
+    private static class Segment {
+        final byte[] bytes;
+        final long start;
+        final long length;
+
+        Segment(String text) {
+            this.bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+            this.start = 0;
+            this.length = bytes.length;
+        }
+
+        Segment(long start, long length) {
+            this.bytes = null;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Writes the segments with non-blocking writes: a chunk is read from the file only when the output is ready, so
+     * the container threads are only used while the client is receiving.
+     */
+    private class AsyncSender implements WriteListener, AsyncListener {
+
+        private final AsyncContext asyncContext;
+        private final RandomAccessContent input;
+        private final Iterator<Segment> segments;
+        private final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        private Segment segment;
+        private long position;
+        private long remaining;
+
+        AsyncSender(AsyncContext asyncContext, RandomAccessContent input, List<Segment> segments) {
+            this.asyncContext = asyncContext;
+            this.input = input;
+            this.segments = segments.iterator();
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            ServletOutputStream output = asyncContext.getResponse().getOutputStream();
+
+            while (output.isReady()) {
+                if (segment == null) {
+                    if (!segments.hasNext()) {
+                        close();
+                        asyncContext.complete();
+                        return;
+                    }
+                    segment = segments.next();
+                    position = segment.start;
+                    remaining = segment.length;
+                }
+
+                if (segment.bytes != null) {
+                    output.write(segment.bytes);
+                    segment = null;
+                    continue;
                 }
 
-                // End with multipart boundary.
-                sos.println();
-                sos.println("--" + MULTIPART_BOUNDARY + "--");
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, remaining));
+                int read = input.read(byteBuffer, position);
+                if (read < 0) {
+                    throw new EOFException("The file has been truncated while being sent");
+                }
+                output.write(buffer, 0, read);
+                position += read;
+                remaining -= read;
+                if (remaining == 0) {
+                    segment = null;
+                }
             }
         }
 
+        @Override
+        public void onError(Throwable t) {
+            logger.info("Error sending file : " + (content != null ? contentName : filepath), t);
+            close();
+            asyncContext.complete();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            logger.info("Timeout sending file : " + (content != null ? contentName : filepath));
+            close();
+            asyncContext.complete();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        private void close() {
+            try {
+                input.close();
+            } catch (IOException ignore) {
+            }
+        }
     }
 
     private static class Range {
@@ -286,30 +545,30 @@ public class MultipartFileSender {
             return (substring.length() > 0) ? Long.parseLong(substring) : -1;
         }
 
-        private static void copy(RandomAccessFile input, OutputStream output, long inputSize, long start, long length) throws IOException {
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            int read;
-
-            if (inputSize == length) {
-                // Write full range.
-                while ((read = input.read(buffer)) > 0) {
-                    output.write(buffer, 0, read);
-                    output.flush();
+        /**
+         * Copies a part of the file to the output with a buffer, reading at the position so the parts share the file.
+         */
+        private static void copy(RandomAccessContent input, OutputStream output, long start, long length) throws IOException {
+            if (length <= 0) {
+                return;
+            }
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            long position = start;
+            long toRead = length;
+
+            while (toRead > 0) {
+                byteBuffer.clear();
+                if (toRead < buffer.length) {
+                    byteBuffer.limit((int) toRead);
                 }
-            } else {
-                input.seek(start);
-                long toRead = length;
-
-                while ((read = input.read(buffer)) > 0) {
-                    if ((toRead -= read) > 0) {
-                        output.write(buffer, 0, read);
-                        output.flush();
-                    } else {
-                        output.write(buffer, 0, (int) toRead + read);
-                        output.flush();
-                        break;
-                    }
+                int read = input.read(byteBuffer, position);
+                if (read < 0) {
+                    throw new EOFException("The file has been truncated while being sent");
                 }
+                output.write(buffer, 0, read);
+                position += read;
+                toRead -= read;
             }
         }
     }
@@ -1,6 +1,7 @@
 package com.fabriceci.fmc.impl;
 
 import com.fabriceci.fmc.AbstractFileManager;
+import com.fabriceci.fmc.FileManagerConfig;
 import com.fabriceci.fmc.MultipartFileSender;
 import com.fabriceci.fmc.error.ClientErrorMessage;
 import com.fabriceci.fmc.error.FMInitializationException;
@@ -10,6 +11,12 @@ import com.fabriceci.fmc.model.FileData;
 import com.fabriceci.fmc.model.FileType;
 import com.fabriceci.fmc.util.*;
 
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+
 import javax.imageio.ImageIO;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -23,6 +30,9 @@ import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -30,7 +40,26 @@ import static com.fabriceci.fmc.util.FileUtils.getExtension;
 
 public class LocalFileManager extends AbstractFileManager {
 
+    // number of file info resolved ahead of the listing, per thread
+    private static final int READ_FOLDER_WINDOW = 4;
+
+    // number of blocks compressed ahead of the archive output, per thread
+    private static final int ZIP_WINDOW = 2;
+    private static ImageProcessingScheduler imageScheduler;
+    private static final SingleFlight<Thumbnail> thumbnailGenerations = new SingleFlight<>();
+    private static final String ARCHIVE_CACHE_DIR = ".archives";
+    private static final int UPLOAD_BUFFER_SIZE = 65536;
+    private static final String UPLOAD_CHUNKS_DIR = ".uploads";
+    // the files being received, next to their target
+    private static final String UPLOAD_TEMP_PREFIX = ".upload-";
+    private static final String UPLOAD_TEMP_SUFFIX = ".tmp";
+    // the file roots whose upload leftovers have been looked for since the start
+    private static final Set<String> cleanedRoots = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final String THUMBNAIL_PACK_DIR = ".pack";
+    private static final Pattern CONTENT_RANGE = Pattern.compile("^bytes (\\d+)-(\\d+)/(\\d+)$");
+
     private File docRoot;
+    private volatile ImageMetadataCache imageMetadataCacheInstance;
 
     public LocalFileManager() throws FMInitializationException {
         this(null);
@@ -39,11 +68,11 @@ public class LocalFileManager extends AbstractFileManager {
     public LocalFileManager(Map<String, String> options) throws FMInitializationException {
         super(options);
 
-        String fileRoot = propertiesConfig.getProperty("fileRoot", "");
+        String fileRoot = getConfig().getFileRoot();
 
         if (!fileRoot.isEmpty() && fileRoot.endsWith("/")) {
             fileRoot = fileRoot.substring(0, fileRoot.length() - 1);
-            propertiesConfig.setProperty("fileRoot", fileRoot);
+            getPropertiesConfig().setProperty("fileRoot", fileRoot);
         }
 
         docRoot = new File(fileRoot).getAbsoluteFile();
@@ -57,10 +86,114 @@ public class LocalFileManager extends AbstractFileManager {
                 throw new FMInitializationException("Unable the create the doc root directory: " + docRoot.getAbsolutePath(), e);
             }
         }
+
+        removeUploadLeftovers();
+    }
+
+    /**
+     * Removes in the background the temp files left in the folders by the uploads interrupted by a stop of the server,
+     * once per file root since the start. The ones more recent than the expiration of the chunks may belong to an
+     * upload in progress on another server sharing the files, they are kept.
+     */
+    private void removeUploadLeftovers() {
+        if (getConfig().isReadOnly() || !cleanedRoots.add(docRoot.getPath())) {
+            return;
+        }
+        final Path root = docRoot.toPath();
+        final Path thumbnailDir = getThumbnailDirFile().toPath();
+        final long limit = System.currentTimeMillis() - getConfig().getUploadChunksExpiration() * 1000L;
+        ThreadPools.getSharedPool("upload-cleanup", 1, 16).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                            return dir.equals(thumbnailDir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                            String name = file.getFileName().toString();
+                            if (name.startsWith(UPLOAD_TEMP_PREFIX) && name.endsWith(UPLOAD_TEMP_SUFFIX)
+                                    && attrs.lastModifiedTime().toMillis() < limit) {
+                                logger.info("Removing the file of an interrupted upload: " + file);
+                                Files.deleteIfExists(file);
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                } catch (IOException e) {
+                    logger.warn("Unable to remove the files of the interrupted uploads in: " + root, e);
+                }
+            }
+        });
     }
 
     @Override
-    public List<FileData> actionReadFolder(String path, String type) throws FileManagerException {
+    public List<FileData> actionReadFolder(String path, String type, String sort, String order, int offset, int limit) throws FileManagerException {
+
+        final List<FileData> fileDataList = new ArrayList<>();
+        FileDataHandler handler = new FileDataHandler() {
+            @Override
+            public void handle(FileData fileData) {
+                fileDataList.add(fileData);
+            }
+        };
+
+        try (DirectoryStream<Path> stream = openFolder(path)) {
+            if (StringUtils.isEmpty(sort)) {
+                // without sort, the entries out of the page are not even resolved
+                readFolder(stream, path, type, offset, limit, handler);
+                return fileDataList;
+            }
+
+            readFolder(stream, path, type, 0, 0, handler);
+        } catch (IOException e) {
+            throw new FileManagerException(ClientErrorMessage.UNABLE_TO_OPEN_DIRECTORY, Collections.singletonList(path));
+        }
+
+        sortFileData(fileDataList, sort, order);
+        return paginateFileData(fileDataList, offset, limit);
+    }
+
+    /**
+     * Writes the entries as they are read, in the directory order, so the listing cannot be sorted. When the listing
+     * fails once the response is started, the data array is left open: the client gets an invalid response rather
+     * than a partial listing it would take for the whole folder.
+     */
+    @Override
+    public FileData actionStreamFolder(HttpServletResponse response, String path, String type, int offset, int limit) throws FileManagerException {
+
+        try (DirectoryStream<Path> stream = openFolder(path)) {
+
+            final JsonStreamWriter writer = generateStreamResponse(response);
+            try {
+                readFolder(stream, path, type, offset, limit, new FileDataHandler() {
+                    @Override
+                    public void handle(FileData fileData) throws IOException {
+                        writer.write(fileData);
+                    }
+                });
+            } catch (FileManagerException | DirectoryIteratorException e) {
+                logger.error("Error streaming the folder: " + path, e);
+                writer.flush();
+                return null;
+            }
+            writer.close();
+        } catch (IOException e) {
+            logger.error("Error streaming the folder: " + path, e);
+        }
+
+        return null;
+    }
+
+    private DirectoryStream<Path> openFolder(String path) throws FileManagerException {
 
         File dir = getFile(path);
 
@@ -73,37 +206,163 @@ public class LocalFileManager extends AbstractFileManager {
 
         checkRestrictions(dir);
 
-        String[] files;
         try {
-            files = dir.list();
-        } catch (SecurityException e) {
+            return Files.newDirectoryStream(dir.toPath());
+        } catch (IOException | SecurityException e) {
             throw new FileManagerException(ClientErrorMessage.UNABLE_TO_OPEN_DIRECTORY, Collections.singletonList(path));
         }
+    }
 
-        String filePath;
-        File file;
+    /**
+     * Hands the file info of the listed entries to the handler, in the directory order. With a parallelism greater
+     * than one, the file info are resolved by the shared pool, a bounded window ahead of the handler.
+     *
+     * @param offset the number of matching entries to skip
+     * @param limit the maximum number of entries to handle, 0 for no limit
+     */
+    private void readFolder(DirectoryStream<Path> stream, String path, String type, int offset, int limit, FileDataHandler handler) throws FileManagerException, IOException {
 
-        List<FileData> fileDataList = new ArrayList<>();
-        if (files != null) {
-            for (String f : files) {
+        int parallelism = getConfig().getReadFolderParallelism();
+        ExecutorService executor = parallelism > 1 ? getReadFolderExecutor(parallelism) : null;
+        Deque<Future<FileData>> pending = new ArrayDeque<>();
 
-                file = new File(docRoot.getPath() + path + f);
-                filePath = path + f;
-                String filename = file.getName();
+        try {
+            readFolder(stream, path, type, offset, limit, handler, executor, pending, parallelism * READ_FOLDER_WINDOW);
+            while (!pending.isEmpty()) {
+                handler.handle(getFileInfoResult(pending.poll()));
+            }
+        } finally {
+            for (Future<FileData> future : pending) {
+                future.cancel(false);
+            }
+        }
+    }
 
-                if (file.isDirectory()) {
-                    if (isAllowedPattern(filename, file.isDirectory())) {
-                        fileDataList.add(getFileInfo(filePath + "/"));
-                    }
-                } else if (isAllowedPattern(filename, file.isDirectory())) {
-                    if (type == null || type.equals("images") && isAllowedImageExt(getExtension(filename))) {
-                        fileDataList.add(getFileInfo(filePath));
-                    }
+    private void readFolder(DirectoryStream<Path> stream, String path, String type, int offset, int limit, FileDataHandler handler,
+                            ExecutorService executor, Deque<Future<FileData>> pending, int window) throws FileManagerException, IOException {
+
+        int skipped = 0;
+        int count = 0;
+
+        // read the attributes of each entry once, and hand them to getFileInfo
+        for (Path entry : stream) {
+
+            if (limit > 0 && count >= limit) {
+                break;
+            }
+
+            BasicFileAttributes attr;
+            try {
+                attr = Files.readAttributes(entry, BasicFileAttributes.class);
+            } catch (IOException e) {
+                logger.debug("Unable to read the attributes of: " + entry, e);
+                continue;
+            }
+
+            String filename = entry.getFileName().toString();
+            String filePath = path + filename;
+
+            if (attr.isDirectory()) {
+                if (!isAllowedPattern(filename, true)) {
+                    continue;
                 }
+                filePath += "/";
+            } else if (!isAllowedPattern(filename, false) || type != null && !(type.equals("images") && isAllowedImageExt(getExtension(filename)))) {
+                continue;
             }
+
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+
+            if (executor == null) {
+                handler.handle(getFileInfo(filePath, entry.toFile(), attr));
+            } else {
+                pending.add(executor.submit(new FileInfoTask(filePath, entry.toFile(), attr)));
+                if (pending.size() >= window) {
+                    handler.handle(getFileInfoResult(pending.poll()));
+                }
+            }
+            count++;
         }
+    }
 
-        return fileDataList;
+    private static FileData getFileInfoResult(Future<FileData> future) throws FileManagerException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FileManagerException) {
+                throw (FileManagerException) e.getCause();
+            }
+            throw new FileManagerException(ClientErrorMessage.ERROR_SERVER, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileManagerException(ClientErrorMessage.ERROR_SERVER, e);
+        }
+    }
+
+    private static ThreadPoolExecutor getReadFolderExecutor(int parallelism) {
+        return ThreadPools.getSharedPool("readfolder", parallelism, parallelism * READ_FOLDER_WINDOW * 4);
+    }
+
+    private static ThreadPoolExecutor getZipExecutor(int parallelism) {
+        return ThreadPools.getSharedPool("zip", parallelism, parallelism * ZIP_WINDOW * 4);
+    }
+
+    private static ThreadPoolExecutor getUploadExecutor(int parallelism, int queueSize) {
+        return ThreadPools.getSharedPool("upload", parallelism, Math.max(queueSize, 1));
+    }
+
+    /**
+     * @return the queue of the background thumbnail generations, shared by the file managers, with its metrics, or
+     * null if no thumbnail has been queued yet
+     */
+    public static ThumbnailQueue getThumbnailQueue() {
+        return ThumbnailQueue.getInstance();
+    }
+
+    private static synchronized ImageProcessingScheduler getImageScheduler(FileManagerConfig config) {
+        long timeout = config.getImageProcessingTimeout() * 1000L;
+        if (imageScheduler == null) {
+            imageScheduler = new ImageProcessingScheduler(config.getImageProcessingConcurrency(), config.getImageProcessingMemory(), config.getImageProcessingQueueSize(), timeout);
+        } else {
+            imageScheduler.setLimits(config.getImageProcessingConcurrency(), config.getImageProcessingMemory(), config.getImageProcessingQueueSize(), timeout);
+        }
+        return imageScheduler;
+    }
+
+    /**
+     * @return the scheduler of the image decodings, shared by the file managers, with its metrics, or null if no image
+     * has been processed yet
+     */
+    public static synchronized ImageProcessingScheduler getImageScheduler() {
+        return imageScheduler;
+    }
+
+    private class FileInfoTask implements Callable<FileData> {
+        private final String path;
+        private final File file;
+        private final BasicFileAttributes attr;
+        private final FileManagerConfig config;
+
+        FileInfoTask(String path, File file, BasicFileAttributes attr) {
+            this.path = path;
+            this.file = file;
+            this.attr = attr;
+            this.config = getConfig();
+        }
+
+        @Override
+        public FileData call() throws FileManagerException {
+            // read with the configuration of the request
+            FileManagerConfig previousConfig = pinConfig(config);
+            try {
+                return getFileInfo(path, file, attr);
+            } finally {
+                pinConfig(previousConfig);
+            }
+        }
     }
 
     @Override
@@ -115,6 +374,15 @@ public class LocalFileManager extends AbstractFileManager {
             throw new FileManagerException(ClientErrorMessage.FORBIDDEN_ACTION_DIR);
         }
 
+        if (!file.exists()) {
+            // an upload sent in chunks, which the client resumes from the received size
+            checkRestrictions(file);
+            FileData upload = getChunkedUploadInfo(path);
+            if (upload != null) {
+                return upload;
+            }
+        }
+
         checkPath(file);
         checkReadPermission(file);
         checkRestrictions(file);
@@ -130,16 +398,9 @@ public class LocalFileManager extends AbstractFileManager {
 
     public FileData getFileInfo(String path) throws FileManagerException {
 
-        FileData fileData = new FileData();
-        fileData.setId(path);
-        FileAttributes fileAttributes = new FileAttributes();
         // get file
         File file = getFile(path);
 
-        if (file.isDirectory() && !path.endsWith("/")) {
-            throw new FileManagerException("Error reading the file: " + file.getAbsolutePath());
-        }
-
         BasicFileAttributes attr;
         try {
             attr = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
@@ -147,20 +408,38 @@ public class LocalFileManager extends AbstractFileManager {
             throw new FileManagerException("Error reading the file: " + file.getAbsolutePath(), e);
         }
 
+        return getFileInfo(path, file, attr);
+    }
+
+    /**
+     * Builds the file info from attributes already read, without querying the file system again
+     * (except for the image dimensions).
+     */
+    protected FileData getFileInfo(String path, File file, BasicFileAttributes attr) throws FileManagerException {
+
+        FileData fileData = new FileData();
+        fileData.setId(path);
+        FileAttributes fileAttributes = new FileAttributes();
+
+        if (attr.isDirectory() && !path.endsWith("/")) {
+            throw new FileManagerException("Error reading the file: " + file.getAbsolutePath());
+        }
+
+        // asked to the file system, which applies the ACLs, the mount options and the privileges of the process
         fileAttributes.setReadable(file.canRead() ? 1 : 0);
         fileAttributes.setWritable(file.canWrite() ? 1 : 0);
 
         String filename = file.getName();
-        if (file.isDirectory()) {
+        if (attr.isDirectory()) {
             fileData.setType(FileType.folder);
         } else {
             fileData.setType(FileType.file);
             Dimension dim = new Dimension(0, 0);
             if (fileAttributes.isReadable()) {
-                fileAttributes.setSize(file.length());
+                fileAttributes.setSize(attr.size());
                 if (isAllowedImageExt(getExtension(filename))) {
-                    if (file.length() > 0) {
-                        dim = ImageUtils.getImageSize(docRoot.getPath() + path);
+                    if (attr.size() > 0) {
+                        dim = getImageSize(path, file, attr);
                     }
                 }
             }
@@ -179,6 +458,21 @@ public class LocalFileManager extends AbstractFileManager {
         return fileData;
     }
 
+    private Dimension getImageSize(String path, File file, BasicFileAttributes attr) throws FileManagerException {
+        ImageMetadataCache imageMetadataCache = getImageMetadataCache();
+        if (imageMetadataCache == null) {
+            return ImageUtils.getImageSize(file);
+        }
+
+        long lastModified = attr.lastModifiedTime().toMillis();
+        Dimension dim = imageMetadataCache.get(path, lastModified, attr.size());
+        if (dim == null) {
+            dim = ImageUtils.getImageSize(file);
+            imageMetadataCache.put(path, lastModified, attr.size(), dim);
+        }
+        return dim;
+    }
+
     @Override
     public FileData actionAddFolder(String path, String name) throws FileManagerException {
 
@@ -243,18 +537,17 @@ public class LocalFileManager extends AbstractFileManager {
             }
         }
 
+        invalidateCaches(sourcePath);
+        invalidateCaches(finalTargetPath);
+
         try {
 
             Files.move(sourceFile.toPath(), targetFile.toPath());
-            File thumbnailFile = new File(getThumbnailPath(sourcePath));
-            if (thumbnailFile.exists()) {
-                if (thumbnailFile.isFile()) {
-                    File newThumbnailFile = new File(getThumbnailPath(targetPath + filename));
-                    Files.createDirectories(newThumbnailFile.getParentFile().toPath());
-                    Files.move(thumbnailFile.toPath(), newThumbnailFile.toPath());
-
+            if (hasThumbnailDir()) {
+                if (targetFile.isDirectory()) {
+                    getThumbnailStore().delete(sourcePath.endsWith("/") ? sourcePath : sourcePath + "/");
                 } else {
-                    FileUtils.removeDirectory(thumbnailFile.toPath());
+                    getThumbnailStore().move(sourcePath, targetPath + filename);
                 }
             }
 
@@ -274,7 +567,6 @@ public class LocalFileManager extends AbstractFileManager {
     @Override
     public FileData actionDelete(String path) throws FileManagerException {
 
-        File thumbnail = new File(getThumbnailPath(path));
         File file = new File(docRoot.getPath() + path);
 
         checkPath(file);
@@ -288,12 +580,13 @@ public class LocalFileManager extends AbstractFileManager {
 
         // Recover the result before the operation
         FileData result = getFileInfo(path);
+        invalidateCaches(path);
 
         if (file.isDirectory()) {
             try {
                 FileUtils.removeDirectory(file.toPath());
-                if (thumbnail.exists()) {
-                    FileUtils.removeDirectory(thumbnail.toPath());
+                if (hasThumbnailDir()) {
+                    getThumbnailStore().delete(path.endsWith("/") ? path : path + "/");
                 }
             } catch (IOException e) {
                 logger.error("Cannot remove directory : " + path);
@@ -303,15 +596,19 @@ public class LocalFileManager extends AbstractFileManager {
             if (!file.delete()) {
                 throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
             }
-            if (thumbnail.exists()) {
-                thumbnail.delete();
+            try {
+                if (hasThumbnailDir()) {
+                    getThumbnailStore().delete(path);
+                }
+            } catch (IOException e) {
+                logger.debug("Unable to delete the thumbnails of: " + path, e);
             }
         }
         return result;
     }
 
     @Override
-    public FileData actionGetImage(HttpServletResponse response, String path, Boolean thumbnail) throws FileManagerException {
+    public FileData actionGetImage(HttpServletResponse response, String path, Boolean thumbnail, int size) throws FileManagerException {
         InputStream is;
         File file = getFile(path);
 
@@ -332,21 +629,26 @@ public class LocalFileManager extends AbstractFileManager {
             long fileSize = file.length();
             if (thumbnail) {
 
-                if (Boolean.parseBoolean(propertiesConfig.getProperty("images.thumbnail.enabled"))) {
-
-                    File thumbnailFile = getThumbnail(path, true);
-                    if (thumbnailFile == null) throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
-                    is = new FileInputStream(thumbnailFile);
-                    fileSize = thumbnailFile.length();
+                String rendition = getRendition(size);
+                Thumbnail thumbnailData;
+                if (getConfig().isThumbnailEnabled()) {
+                    thumbnailData = getThumbnail(path, rendition, true);
+                    if (thumbnailData == null) throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
                 } else {
                     // no cache
-                    BufferedImage image = ImageIO.read(file);
-                    BufferedImage resizedImage = generateThumbnail(image);
-                    ByteArrayOutputStream os = new ByteArrayOutputStream();
-                    ImageIO.write(resizedImage, fileExt, os);
-                    is = new ByteArrayInputStream(os.toByteArray());
-                    fileSize = os.toByteArray().length;
+                    try (ThumbnailSource source = new ThumbnailSource(file, Collections.singletonList(rendition))) {
+                        thumbnailData = createThumbnail(source.getImage(), rendition);
+                    } catch (RejectedExecutionException e) {
+                        logger.warn("Too many images being processed, rejecting: " + path + " - " + getImageScheduler());
+                        throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
+                    }
+                }
+                // the thumbnails are encoded in the smallest format, not always the one of the image
+                if (thumbnailData.getMimeType() != null) {
+                    mimeType = thumbnailData.getMimeType();
                 }
+                is = new ByteArrayInputStream(thumbnailData.getData());
+                fileSize = thumbnailData.getData().length;
 
             } else {
                 is = new FileInputStream(file);
@@ -413,10 +715,16 @@ public class LocalFileManager extends AbstractFileManager {
             }
         }
 
-        File oldThumbnailFile = new File(getThumbnailPath(sourcePath));
-        if (oldThumbnailFile.exists()) {
-            oldThumbnailFile.renameTo(new File(getThumbnailPath(targetPath)));
+        // once the rename is done, so a refused request leaves the caches untouched
+        invalidateCaches(targetFile.isDirectory() ? sourcePath + "/" : sourcePath);
+        try {
+            if (hasThumbnailDir()) {
+                getThumbnailStore().move(targetFile.isDirectory() ? sourcePath + "/" : sourcePath, targetPath);
+            }
+        } catch (IOException e) {
+            logger.debug("Unable to move the thumbnails of: " + sourcePath, e);
         }
+        invalidateCaches(targetPath);
 
         return getFileInfo(targetPath);
 
@@ -440,6 +748,7 @@ public class LocalFileManager extends AbstractFileManager {
             MultipartFileSender.fromPath(file.toPath())
                     .with(request)
                     .with(response)
+                    .withAsync(getConfig().isAsyncEnabled(), getConfig().getAsyncTimeout() * 1000L)
                     .serveResource();
         } catch (Exception e) {
             throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
@@ -468,7 +777,7 @@ public class LocalFileManager extends AbstractFileManager {
     }
 
     @Override
-    public FileData actionDownload(HttpServletResponse response, String path) throws FileManagerException {
+    public FileData actionDownload(HttpServletRequest request, HttpServletResponse response, String path) throws FileManagerException {
 
 
         File file = getFile(path);
@@ -486,7 +795,7 @@ public class LocalFileManager extends AbstractFileManager {
         if (file.isDirectory()) {
 
             // check  if permission is granted
-            if (!Boolean.parseBoolean(propertiesConfig.getProperty("allowFolderDownload"))) {
+            if (!getConfig().isAllowFolderDownload()) {
                 throw new FileManagerException(ClientErrorMessage.NOT_ALLOWED);
             }
         }
@@ -498,12 +807,16 @@ public class LocalFileManager extends AbstractFileManager {
             response.setHeader("Expires", "0");
             response.setHeader("Cache-Control", "must-revalidate, post-check=0, pre-check=0");
 
-            boolean charsLatinOnly = Boolean.parseBoolean(propertiesConfig.getProperty("charsLatinOnly"));
+            boolean charsLatinOnly = getConfig().isCharsLatinOnly();
 
             if (file.isFile()) {
                 if(!charsLatinOnly){
                     filename = URLEncoder.encode(filename, "UTF-8");
                 }
+                if (request != null) {
+                    serveAttachment(request, response, file, filename);
+                    return null;
+                }
                 String fileExt = filename.substring(filename.lastIndexOf(".") + 1);
                 String mimeType = (!StringUtils.isEmpty(FileManagerUtils.mimetypes.get(fileExt))) ? FileManagerUtils.mimetypes.get(fileExt) : "application/octet-stream";
                 response.setContentLength((int) file.length());
@@ -523,18 +836,27 @@ public class LocalFileManager extends AbstractFileManager {
                 if(!charsLatinOnly){
                     zipFileName = URLEncoder.encode(zipFileName, "UTF-8");
                 }
+                if (request != null && getConfig().isZipResumable()) {
+                    serveResumableArchive(request, response, path, file, zipFileName);
+                    return null;
+                }
+                if (request != null && getConfig().isZipCacheEnabled()) {
+                    serveAttachment(request, response, getCachedArchive(path, file), zipFileName);
+                    return null;
+                }
                 String mimType = FileManagerUtils.mimetypes.get("zip");
                 response.setContentType(mimType);
                 response.setHeader("Content-Disposition", "attachment; filename=\"" + zipFileName + "\"");
-                byte[] zipFileByteArray;
+                // the length is unknown until the end, the archive is sent in chunks as it is built
                 try {
-                    zipFileByteArray = ZipUtils.zipFolder(file);
+                    zipFolder(file, response.getOutputStream());
                 } catch (IOException e) {
-                    throw new FileManagerException(ClientErrorMessage.ERROR_CREATING_ZIP);
+                    if (!response.isCommitted()) {
+                        throw new FileManagerException(ClientErrorMessage.ERROR_CREATING_ZIP);
+                    }
+                    // the beginning of the archive has been sent, the client gets a truncated file
+                    logger.error("Error sending the archive of: " + path, e);
                 }
-                response.setContentLength(zipFileByteArray.length);
-
-                FileUtils.copy(new ByteArrayInputStream(zipFileByteArray), response.getOutputStream());
             }
 
         } catch (IOException e) {
@@ -546,58 +868,368 @@ public class LocalFileManager extends AbstractFileManager {
     }
 
 
+    /**
+     * Sends the file with the ranges support, and the non-blocking writes if enabled.
+     */
+    private void serveAttachment(HttpServletRequest request, HttpServletResponse response, File file, String filename) throws FileManagerException {
+        try {
+            MultipartFileSender.fromPath(file.toPath())
+                    .with(request)
+                    .with(response)
+                    .withAsync(getConfig().isAsyncEnabled(), getConfig().getAsyncTimeout() * 1000L)
+                    .asAttachment(filename)
+                    .serveResource();
+        } catch (Exception e) {
+            throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
+        }
+    }
+
+    /**
+     * Sends the archive of the folder with range support, reading only the files covered by the requested ranges.
+     */
+    private void serveResumableArchive(HttpServletRequest request, HttpServletResponse response, String path, File folder, String zipFileName) throws FileManagerException {
+        StoredZipArchive archive;
+        try {
+            archive = new StoredZipArchive(folder);
+        } catch (IOException e) {
+            logger.error("Error creating the archive of: " + path, e);
+            throw new FileManagerException(ClientErrorMessage.ERROR_CREATING_ZIP);
+        }
+        try {
+            MultipartFileSender.fromContent(archive, zipFileName, archive.getLastModified(), archive.getFingerprint())
+                    .with(request)
+                    .with(response)
+                    .withAsync(getConfig().isAsyncEnabled(), getConfig().getAsyncTimeout() * 1000L)
+                    .asAttachment(zipFileName)
+                    .serveResource();
+        } catch (Exception e) {
+            if (!response.isCommitted()) {
+                throw new FileManagerException(ClientErrorMessage.ERROR_CREATING_ZIP);
+            }
+            // a file has changed while being sent, the client gets a truncated archive and may resume it
+            logger.error("Error sending the archive of: " + path, e);
+        }
+    }
+
+    private void zipFolder(File folder, OutputStream out) throws IOException {
+        int parallelism = getConfig().getZipParallelism();
+        ZipUtils.zipFolder(folder, out, getConfig().getZipStoredExtensions(),
+                parallelism > 1 ? getZipExecutor(parallelism) : null, parallelism * ZIP_WINDOW);
+    }
+
+    /**
+     * @return the archive of the folder from the cache, built if the folder has changed since it was cached
+     */
+    private File getCachedArchive(String path, final File folder) throws FileManagerException {
+        try {
+            String fingerprint = ZipUtils.fingerprint(folder, getConfig().getZipStoredExtensions());
+            return getArchiveCache().get(path, fingerprint, new ArchiveCache.ArchiveWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    zipFolder(folder, out);
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Error creating the archive of: " + path, e);
+            throw new FileManagerException(ClientErrorMessage.ERROR_CREATING_ZIP);
+        }
+    }
+
+    /**
+     * @param path the target directory, or null to read it from the "path" form field, which must precede the files
+     */
     @Override
     public List<FileData> actionUpload(HttpServletRequest request, String path) throws FileManagerException {
 
+        return uploadFiles(request, path != null ? getUploadDirectory(path) : null);
+
+    }
+
+    /**
+     * @return the directory of the uploaded files, once checked
+     */
+    private String getUploadDirectory(String path) throws FileManagerException {
+        if (StringUtils.isEmpty(path)) {
+            throw new FileManagerException(ClientErrorMessage.INVALID_VAR, Collections.singletonList("path"));
+        }
         File targetDirectory = getFile(path);
-        String targetDirectoryString = path.substring(0, path.lastIndexOf("/") + 1);
 
         checkPath(targetDirectory);
         checkWritePermission(targetDirectory);
 
-        return uploadFiles(request, targetDirectoryString);
-
+        return path.substring(0, path.lastIndexOf("/") + 1);
     }
 
+    /**
+     * Receives the uploaded files one after the other, as they come in the request body. With a parallelism greater
+     * than one, each received file is moved in place and its info resolved by the shared pool while the next one is
+     * received. The results are in the order of the files. The receipt itself stays serial: the body is a single
+     * stream, a file is written to its temp file before the next one can be read, only the moves and the info reads
+     * overlap it.
+     * <p>
+     * The body is streamed only if the container has not read it yet: the servlet must not have a multipart config,
+     * and no parameter must have been asked for before (a filter, a multipart resolver). The parts buffered by the
+     * container are used otherwise.
+     *
+     * @param targetDirectory the directory of the files, or null to read it from the form fields
+     */
     private ArrayList<FileData>  uploadFiles(HttpServletRequest request, String targetDirectory) throws FileManagerException {
         ArrayList<FileData> array = new ArrayList<>();
-        try {
-            for (Part uploadedFile : request.getParts()) {
+        long uploadFileSizeLimit = getUploadFileSizeLimit();
+        // the chunks are sent one per request
+        String contentRange = request.getHeader("Content-Range");
 
-                if (uploadedFile.getContentType() == null) {
-                    continue;
+        int parallelism = getConfig().getUploadParallelism();
+        ExecutorService executor = parallelism > 1 ? getUploadExecutor(parallelism, getConfig().getUploadQueueSize()) : null;
+        Deque<Future<FileData>> pending = new ArrayDeque<>();
+        int window = Math.max(getConfig().getUploadQueueSize(), 1);
+
+        try {
+            // the parts are read from the request body as they arrive, without being buffered by the container
+            boolean fileFound = false;
+            try {
+                ServletFileUpload upload = new ServletFileUpload();
+                upload.setHeaderEncoding("UTF-8");
+                FileItemIterator iterator = upload.getItemIterator(request);
+                while (iterator.hasNext()) {
+                    FileItemStream item = iterator.next();
+                    if (item.isFormField()) {
+                        if (targetDirectory == null && "path".equals(item.getFieldName())) {
+                            try (InputStream in = item.openStream()) {
+                                targetDirectory = getUploadDirectory(cleanPath(Streams.asString(in, "UTF-8")));
+                            }
+                        }
+                        continue;
+                    }
+                    if (item.getContentType() == null) {
+                        continue;
+                    }
+                    if (targetDirectory == null) {
+                        throw new FileManagerException(ClientErrorMessage.INVALID_VAR, Collections.singletonList("path"));
+                    }
+                    fileFound = true;
+                    UploadTask task;
+                    try (InputStream in = item.openStream()) {
+                        task = receiveFile(in, item.getName(), targetDirectory, uploadFileSizeLimit, contentRange);
+                    }
+                    runUploadTask(task, executor, pending, window, array);
                 }
+            } catch (FileUploadException e) {
+                if (fileFound) {
+                    throw new FileManagerException(ClientErrorMessage.ERROR_UPLOADING_FILE);
+                }
+            }
 
-                if (uploadedFile.getSize() == 0) {
-                    throw new FileManagerException(ClientErrorMessage.FILE_EMPTY);
+            if (!fileFound) {
+                // the body has already been read by the container (servlet with a multipart config), use its parts
+                if (targetDirectory == null) {
+                    targetDirectory = getUploadDirectory(cleanPath(request.getParameter("path")));
+                }
+                for (final Part uploadedFile : request.getParts()) {
+                    if (uploadedFile.getContentType() == null) {
+                        continue;
+                    }
+                    if (uploadedFile.getSize() > uploadFileSizeLimit) {
+                        throw new FileManagerException(ClientErrorMessage.UPLOAD_FILES_SMALLER_THAN, Collections.singletonList(String.valueOf(FileUtils.humanReadableByteCount(uploadFileSizeLimit, true))));
+                    }
+                    // the parts are buffered, they can be written in parallel too
+                    final long limit = uploadFileSizeLimit;
+                    final String range = contentRange;
+                    final String directory = targetDirectory;
+                    runUploadTask(new UploadTask() {
+                        @Override
+                        FileData upload() throws FileManagerException, IOException {
+                            UploadTask task;
+                            try (InputStream in = uploadedFile.getInputStream()) {
+                                task = receiveFile(in, uploadedFile.getSubmittedFileName(), directory, limit, range);
+                            }
+                            return task.upload();
+                        }
+                    }, executor, pending, window, array);
                 }
+            }
 
-                String submittedFileName = uploadedFile.getSubmittedFileName();
-                String filename = normalizeName(FileUtils.getBaseName(submittedFileName)) + '.' + FileUtils.getExtension(submittedFileName);
+            while (!pending.isEmpty()) {
+                array.add(getFileInfoResult(pending.poll()));
+            }
+        } catch (IOException|ServletException e){
+            throw new FileManagerException(ClientErrorMessage.FORBIDDEN_ACTION_DIR);
+        }
+        return array;
+    }
+
+    private static void runUploadTask(UploadTask task, ExecutorService executor, Deque<Future<FileData>> pending, int window,
+                                      List<FileData> results) throws FileManagerException, IOException {
+        if (executor == null) {
+            results.add(task.upload());
+            return;
+        }
+        pending.add(executor.submit(task));
+        if (pending.size() >= window) {
+            results.add(getFileInfoResult(pending.poll()));
+        }
+    }
+
+    /**
+     * Writes an uploaded file to a temp file in the target directory, checking the size as the bytes arrive. A
+     * rejected file never replaces the existing one.
+     *
+     * @return the task moving the file in place and returning its info
+     */
+    private UploadTask receiveFile(InputStream in, String submittedFileName, String targetDirectory, long uploadFileSizeLimit, String contentRange) throws FileManagerException, IOException {
+        submittedFileName = FileUtils.getName(submittedFileName);
+        String filename = normalizeName(FileUtils.getBaseName(submittedFileName)) + '.' + FileUtils.getExtension(submittedFileName);
+        final String path = targetDirectory + filename;
+
+        // the name and the extension are checked before any byte is written
+        checkRestrictions(new File(targetDirectory + "/" + filename));
+
+        if (contentRange != null) {
+            return receiveChunk(in, path, uploadFileSizeLimit, contentRange);
+        }
+
+        final Path target = getFile(targetDirectory).toPath().resolve(filename);
+        final Path tempFile = Files.createTempFile(target.getParent(), UPLOAD_TEMP_PREFIX, UPLOAD_TEMP_SUFFIX);
+        boolean received = false;
+        try {
+            long size = 0;
+            byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    size += read;
+                    if (size > uploadFileSizeLimit) {
+                        throw new FileManagerException(ClientErrorMessage.UPLOAD_FILES_SMALLER_THAN, Collections.singletonList(String.valueOf(FileUtils.humanReadableByteCount(uploadFileSizeLimit, true))));
+                    }
+                    out.write(buffer, 0, read);
+                }
+            }
+            if (size == 0) {
+                throw new FileManagerException(ClientErrorMessage.FILE_EMPTY);
+            }
+            received = true;
+        } finally {
+            if (!received) {
+                Files.deleteIfExists(tempFile);
+            }
+        }
 
-                checkRestrictions(new File(targetDirectory + "/" + filename));
-                Long uploadFileSizeLimit = 0L;
-                String uploadFileSizeLimitString = propertiesConfig.getProperty("upload.fileSizeLimit");
+        return new UploadTask() {
+            @Override
+            FileData upload() throws FileManagerException, IOException {
                 try {
-                    uploadFileSizeLimit = Long.parseLong(uploadFileSizeLimitString);
-                } catch (NumberFormatException e) {
-                    logger.error("Wrong format for the property: 'upload.fileSizeLimit");
-                    throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
+                    invalidateCaches(path);
+                    Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tempFile);
                 }
+                queueThumbnails(path);
+                return getFileInfo(path);
+            }
+        };
+    }
+
+    /**
+     * Writes a chunk to the staging file of the upload.
+     *
+     * @return the task moving the file in place once all the chunks are received, and returning the info of the
+     * uploaded file, or of the upload in progress
+     */
+    private UploadTask receiveChunk(InputStream in, final String path, long uploadFileSizeLimit, String contentRange) throws FileManagerException {
+        Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+        if (!matcher.matches()) {
+            throw new FileManagerException(ClientErrorMessage.INVALID_FILE_UPLOAD);
+        }
+        long start = Long.parseLong(matcher.group(1));
+        long end = Long.parseLong(matcher.group(2));
+        long total = Long.parseLong(matcher.group(3));
+        if (start > end || end >= total) {
+            throw new FileManagerException(ClientErrorMessage.INVALID_FILE_UPLOAD);
+        }
+        if (total > uploadFileSizeLimit) {
+            throw new FileManagerException(ClientErrorMessage.UPLOAD_FILES_SMALLER_THAN, Collections.singletonList(String.valueOf(FileUtils.humanReadableByteCount(uploadFileSizeLimit, true))));
+        }
 
-                if (uploadedFile.getSize() > uploadFileSizeLimit) {
-                    throw new FileManagerException(ClientErrorMessage.UPLOAD_FILES_SMALLER_THAN, Collections.singletonList(String.valueOf(FileUtils.humanReadableByteCount(uploadFileSizeLimit, true))));
+        final ChunkedUploadStore store = getChunkedUploadStore();
+        final boolean complete;
+        try {
+            complete = store.write(path, start, end, total, in) == total;
+        } catch (IOException e) {
+            logger.error("Error writing the chunk " + contentRange + " of: " + path, e);
+            throw new FileManagerException(ClientErrorMessage.ERROR_UPLOADING_FILE);
+        }
+
+        return new UploadTask() {
+            @Override
+            FileData upload() throws FileManagerException, IOException {
+                if (!complete) {
+                    return getChunkedUploadInfo(path);
+                }
+                invalidateCaches(path);
+                // a concurrent request may have received the last chunk too, and moved the file already
+                if (store.moveTo(path, getFile(path).toPath())) {
+                    queueThumbnails(path);
                 }
+                return getFileInfo(path);
+            }
+        };
+    }
+
+    /**
+     * The end of an upload, run with the configuration of the request which received the file.
+     */
+    private abstract class UploadTask implements Callable<FileData> {
+        private final FileManagerConfig config;
+
+        UploadTask() {
+            this.config = getConfig();
+        }
 
-                String uploadedPath = getFile(targetDirectory).getAbsolutePath() + "/" + filename;
+        abstract FileData upload() throws FileManagerException, IOException;
 
-                Files.copy(new BufferedInputStream(uploadedFile.getInputStream()), Paths.get(uploadedPath), StandardCopyOption.REPLACE_EXISTING);
-                array.add(getFileInfo(targetDirectory + filename));
+        @Override
+        public FileData call() throws FileManagerException {
+            FileManagerConfig previousConfig = pinConfig(config);
+            try {
+                return upload();
+            } catch (IOException e) {
+                throw new FileManagerException(ClientErrorMessage.FORBIDDEN_ACTION_DIR, e);
+            } finally {
+                pinConfig(previousConfig);
             }
-        } catch (IOException|ServletException e){
-            throw new FileManagerException(ClientErrorMessage.FORBIDDEN_ACTION_DIR);
         }
-        return array;
+    }
+
+    /**
+     * @return the info of the upload in progress of the path, with the size received so far, or null if there is none
+     */
+    private FileData getChunkedUploadInfo(String path) throws FileManagerException {
+        if (!hasThumbnailDir()) {
+            return null;
+        }
+        long received;
+        try {
+            received = getChunkedUploadStore().getReceivedSize(path);
+        } catch (IOException e) {
+            throw new FileManagerException(ClientErrorMessage.ERROR_SERVER, e);
+        }
+        if (received < 0) {
+            return null;
+        }
+
+        FileData fileData = new FileData();
+        fileData.setId(path);
+        fileData.setType(FileType.file);
+        FileAttributes fileAttributes = new FileAttributes();
+        fileAttributes.setName(FileUtils.getName(path));
+        fileAttributes.setPath(getDynamicPath(path));
+        fileAttributes.setSize(received);
+        fileData.setAttributes(fileAttributes);
+        return fileData;
+    }
+
+    protected ChunkedUploadStore getChunkedUploadStore() throws FileManagerException {
+        return ChunkedUploadStore.getInstance(new File(getThumbnailDir(), UPLOAD_CHUNKS_DIR), getConfig().getUploadChunksExpiration() * 1000L);
     }
 
     @Override
@@ -613,6 +1245,8 @@ public class LocalFileManager extends AbstractFileManager {
             throw new FileManagerException(ClientErrorMessage.FORBIDDEN_ACTION_DIR);
         }
 
+        invalidateCaches(pathParam);
+
         try {
             FileOutputStream oldFile = new FileOutputStream(file, false);
             oldFile.write(contentParam.getBytes());
@@ -676,6 +1310,8 @@ public class LocalFileManager extends AbstractFileManager {
             }
 
         }
+        invalidateArchives(finalPath);
+        queueThumbnails(finalPath);
 
         return getFileInfo(finalPath);
     }
@@ -727,6 +1363,7 @@ public class LocalFileManager extends AbstractFileManager {
                             fos.write(buffer, 0, len);
                         }
                         fos.close();
+                        queueThumbnails(getRelativePath(newFile));
 
                     } else if(zipEntry.isDirectory()){
                         newFile.mkdir();
@@ -750,6 +1387,7 @@ public class LocalFileManager extends AbstractFileManager {
         } catch (IOException e) {
             throw new FileManagerException(ClientErrorMessage.ERROR_CREATING_ZIP);
         }
+        invalidateArchives(targetPath);
 
         return fileDataList;
     }
@@ -847,8 +1485,52 @@ public class LocalFileManager extends AbstractFileManager {
         return fileAttributes;
     }
 
+    @Override
+    protected void afterRequest() {
+        ImageMetadataCache imageMetadataCache = imageMetadataCacheInstance;
+        if (imageMetadataCache != null && !getConfig().isReadOnly()) {
+            imageMetadataCache.flush();
+        }
+    }
+
+    protected ImageMetadataCache getImageMetadataCache() throws FileManagerException {
+        if (imageMetadataCacheInstance == null && getConfig().isDimensionsCacheEnabled()) {
+            imageMetadataCacheInstance = ImageMetadataCache.getInstance(getThumbnailDir(), getConfig().getDimensionsCacheSize());
+        }
+        return imageMetadataCacheInstance;
+    }
+
+    private void invalidateCaches(String path) throws FileManagerException {
+        if (!hasThumbnailDir()) {
+            return;
+        }
+        ImageMetadataCache imageMetadataCache = getImageMetadataCache();
+        if (imageMetadataCache != null) {
+            imageMetadataCache.invalidate(path);
+        }
+        invalidateArchives(path);
+    }
+
+    /**
+     * Removes the cached archives of the folders containing the path. They would not be served anyway since their
+     * fingerprint no longer matches, this frees the space early.
+     */
+    private void invalidateArchives(String path) throws FileManagerException {
+        if (getConfig().isZipCacheEnabled() && hasThumbnailDir()) {
+            getArchiveCache().invalidate(path);
+        }
+    }
+
+    protected ArchiveCache getArchiveCache() throws FileManagerException {
+        return ArchiveCache.getInstance(new File(getThumbnailDir(), ARCHIVE_CACHE_DIR), getConfig().getZipCacheSize());
+    }
+
+    private interface FileDataHandler {
+        void handle(FileData fileData) throws IOException;
+    }
+
     private String getDynamicPath(String path) {
-        String fileRoot = propertiesConfig.getProperty("fileRoot");
+        String fileRoot = getConfig().getFileRoot();
         if (fileRoot.isEmpty()) return path;
 
         return fileRoot + path;
@@ -868,8 +1550,33 @@ public class LocalFileManager extends AbstractFileManager {
 
     protected File getThumbnailDir() throws FileManagerException {
 
-        final String fileRoot = propertiesConfig.getProperty("fileRoot", "");
-        final String thumbnailDirPath = propertiesConfig.getProperty("images.thumbnail.dir");
+        File thumbnailDirFile = getThumbnailDirFile();
+        if (!thumbnailDirFile.exists()) {
+            try {
+                Files.createDirectory(thumbnailDirFile.toPath());
+            } catch (IOException e) {
+                logger.error("Could not create the thumbnail directory: " + thumbnailDirFile.getAbsolutePath(), e);
+                throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
+            }
+        }
+
+        return thumbnailDirFile;
+    }
+
+    /**
+     * The thumbnails and the caches are stored in the thumbnail dir: without it, there is nothing to move or invalidate.
+     */
+    private boolean hasThumbnailDir() {
+        return getThumbnailDirFile().isDirectory();
+    }
+
+    /**
+     * @return the thumbnail dir, which is not created until something is stored in it
+     */
+    private File getThumbnailDirFile() {
+
+        final String fileRoot = getConfig().getFileRoot();
+        final String thumbnailDirPath = getConfig().getThumbnailDir();
         final String thumbnailDefaultDirName = "_thumbs";
         File thumbnailDirFile = null;
         if(!StringUtils.isEmpty(thumbnailDirPath)){
@@ -877,48 +1584,288 @@ public class LocalFileManager extends AbstractFileManager {
         } else{
             thumbnailDirFile = new File(StringUtils.isEmpty(fileRoot) ? thumbnailDefaultDirName: fileRoot + '/' + thumbnailDefaultDirName);
         }
+        return thumbnailDirFile;
+    }
 
-        if (!thumbnailDirFile.exists()) {
+    /**
+     * Queues the generation of the thumbnail of a new image, or of the images of a new folder (path ending with a
+     * slash), so the thumbnails are usually ready before they are requested.
+     */
+    protected void queueThumbnails(String path) throws FileManagerException {
+        final FileManagerConfig config = getConfig();
+        if (!config.isThumbnailEnabled() || config.isReadOnly()) {
+            return;
+        }
+        final ThumbnailQueue queue = ThumbnailQueue.getInstance(config.getThumbnailBackgroundThreads(), config.getThumbnailBackgroundQueueSize());
+        if (queue == null) {
+            return;
+        }
+
+        if (!path.endsWith("/")) {
+            queueThumbnail(queue, config, path);
+            return;
+        }
+        try {
+            Files.walkFileTree(getFile(path).toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    try {
+                        queueThumbnail(queue, config, getRelativePath(file.toFile()));
+                    } catch (FileManagerException e) {
+                        logger.debug("Unable to queue the thumbnail of: " + file, e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.debug("Unable to queue the thumbnails of: " + path, e);
+        }
+    }
+
+    private void queueThumbnail(ThumbnailQueue queue, final FileManagerConfig config, final String path) throws FileManagerException {
+        String ext = getExtension(path).toLowerCase();
+        if (!isAllowedImageExt(ext) || !ImageIO.getImageReadersBySuffix(ext).hasNext()) {
+            return;
+        }
+        queue.submit(getThumbnailPath(path), new Runnable() {
+            @Override
+            public void run() {
+                // generated with the configuration of the request which created the image
+                FileManagerConfig previousConfig = pinConfig(config);
+                try {
+                    generateThumbnails(path);
+                } catch (FileManagerException | IOException e) {
+                    logger.debug("Error generating the thumbnails of: " + path, e);
+                } finally {
+                    pinConfig(previousConfig);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the store of the thumbnails, in the thumbnail dir, kept within the disk budget
+     */
+    protected ThumbnailStore getThumbnailStore() throws FileManagerException {
+        FileManagerConfig config = getConfig();
+        ThumbnailStore store;
+        String key;
+        if (config.isThumbnailPacked()) {
+            File packDir = new File(getThumbnailDir(), THUMBNAIL_PACK_DIR);
             try {
-                Files.createDirectory(thumbnailDirFile.toPath());
+                store = PackThumbnailStore.getInstance(packDir);
             } catch (IOException e) {
-                logger.error("Could not create the thumbnail directory: " + thumbnailDirFile.getAbsolutePath(), e);
+                logger.error("Unable to open the thumbnail store: " + packDir, e);
                 throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
             }
+            key = packDir.getAbsolutePath();
+        } else {
+            store = new DirectoryThumbnailStore(getThumbnailDir(), new HashSet<>(Arrays.asList(ARCHIVE_CACHE_DIR, UPLOAD_CHUNKS_DIR, THUMBNAIL_PACK_DIR)));
+            key = getThumbnailDir().getAbsolutePath();
         }
+        return ThumbnailCache.getInstance(key, store, config.getThumbnailCacheSize(), config.isThumbnailCacheFrequencyBased(),
+                config.getThumbnailSweepBatchSize(), getThumbnailValidator());
+    }
 
-        return thumbnailDirFile;
+    /**
+     * @return the check of the swept thumbnails, with the configuration of the sweeping thread
+     */
+    private ThumbnailCache.Validator getThumbnailValidator() {
+        return new ThumbnailCache.Validator() {
+            @Override
+            public boolean isValid(StoredThumbnail thumbnail) {
+                // the renditions of the sizes no longer configured are not requested anymore
+                if (!getRenditions().contains(thumbnail.getRendition())) {
+                    return false;
+                }
+                // a thumbnail older than its image is from a replaced image
+                File source = new File(docRoot.getPath() + thumbnail.getPath());
+                return source.isFile() && source.lastModified() <= thumbnail.getLastModified();
+            }
+        };
     }
 
-    protected File getThumbnail(String path, boolean create) throws FileManagerException, IOException {
+    /**
+     * Checks the next thumbnails, as done periodically in the background: the ones of the images deleted or modified
+     * outside of the file manager are removed, then the least used ones if the thumbnails exceed their budget.
+     *
+     * @return the number of thumbnails checked
+     */
+    protected int sweepThumbnails(int count) throws FileManagerException, IOException {
+        ThumbnailCache cache = (ThumbnailCache) getThumbnailStore();
+        return cache.sweep(count, getThumbnailValidator());
+    }
 
-        File thumbnailFile = new File(getThumbnailPath(path));
+    /**
+     * @param size the requested size in pixels, 0 for the default thumbnail
+     * @return the name of the smallest rendition at least as large as the requested size, or of the largest one
+     */
+    protected String getRendition(int size) {
+        FileManagerConfig config = getConfig();
+        if (size <= Math.max(config.getThumbnailMaxWidth(), config.getThumbnailMaxHeight())) {
+            return "";
+        }
+        String rendition = "";
+        for (int renditionSize : config.getThumbnailSizes()) {
+            rendition = Integer.toString(renditionSize);
+            if (renditionSize >= size) {
+                break;
+            }
+        }
+        return rendition;
+    }
 
-        if (thumbnailFile.exists()) {
-            return thumbnailFile;
-        } else if (!create) {
-            return null;
+    /**
+     * @return the renditions of each image: the default one, then one per configured size
+     */
+    private List<String> getRenditions() {
+        List<String> renditions = new ArrayList<>();
+        renditions.add("");
+        for (int size : getConfig().getThumbnailSizes()) {
+            renditions.add(Integer.toString(size));
         }
+        return renditions;
+    }
+
+    protected Thumbnail getThumbnail(String path, boolean create) throws FileManagerException, IOException {
+        return getThumbnail(path, "", create);
+    }
 
+    protected Thumbnail getThumbnail(String path, String rendition, boolean create) throws FileManagerException, IOException {
         File originalFile = new File(docRoot.getPath() + path);
-        String ext = FileUtils.getExtension(originalFile.getName());
+        try (ThumbnailSource source = new ThumbnailSource(originalFile, Collections.singletonList(rendition))) {
+            return getThumbnail(path, rendition, create, source, true);
+        }
+    }
+
+    /**
+     * @param source the image, shared by the generations of the renditions of an image
+     * @param join   true to wait for a generation of the same thumbnail by another thread, false to skip it and return
+     *               null
+     */
+    private Thumbnail getThumbnail(final String path, final String rendition, boolean create, final ThumbnailSource source, boolean join) throws FileManagerException, IOException {
+
+        final ThumbnailStore store = getThumbnailStore();
+        final File originalFile = source.file;
+
+        // a thumbnail older than its image is from a replaced image
+        Thumbnail thumbnail = store.get(path, rendition, originalFile.lastModified());
+        if (thumbnail != null) {
+            return thumbnail;
+        } else if (!create) {
+            return null;
+        }
 
         if (!originalFile.exists()) {
             throw new FileManagerException(ClientErrorMessage.FILE_DOES_NOT_EXIST, Collections.singletonList(path));
         }
 
         try {
-            Files.createDirectories(thumbnailFile.getParentFile().toPath());
-
-            BufferedImage source = ImageIO.read(originalFile);
-            BufferedImage resizedImage = generateThumbnail(source);
-            ImageIO.write(resizedImage, ext, thumbnailFile);
-        } catch (IOException e) {
-            logger.error("Error during thumbnail generation - ext: " + ext + " name: " + originalFile.getName(), e);
+            Callable<Thumbnail> generation = new Callable<Thumbnail>() {
+                @Override
+                public Thumbnail call() throws IOException {
+                    Thumbnail thumbnail = store.get(path, rendition, originalFile.lastModified());
+                    if (thumbnail != null) {
+                        // generated by a call which ended meanwhile
+                        return thumbnail;
+                    }
+                    thumbnail = createThumbnail(source.getImage(), rendition);
+                    store.put(path, rendition, thumbnail);
+                    return thumbnail;
+                }
+            };
+            String key = getThumbnailPath(path) + '@' + rendition;
+            // the concurrent requests of the same thumbnail wait for a single generation
+            return join ? thumbnailGenerations.run(key, generation) : thumbnailGenerations.runIfIdle(key, generation);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Too many images being processed, rejecting: " + path + " - " + getImageScheduler());
             return null;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Error during thumbnail generation - rendition: " + rendition + " name: " + originalFile.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Generates the missing renditions of an image, decoding it once.
+     */
+    protected void generateThumbnails(String path) throws FileManagerException, IOException {
+        List<String> renditions = getRenditions();
+        try (ThumbnailSource source = new ThumbnailSource(new File(docRoot.getPath() + path), renditions)) {
+            for (String rendition : renditions) {
+                // holding the decoded image, it must not wait for a request which waits for its memory
+                getThumbnail(path, rendition, true, source, false);
+            }
         }
+    }
 
-        return thumbnailFile;
+    private Thumbnail createThumbnail(BufferedImage source, String rendition) throws IOException {
+        BufferedImage resizedImage = rendition.isEmpty() ? generateThumbnail(source) : generateThumbnail(source, Integer.parseInt(rendition));
+        return new ThumbnailEncoder(getConfig().getThumbnailQuality() / 100f).encode(resizedImage);
+    }
+
+    /**
+     * The image the renditions are generated from, decoded on first use at the resolution needed by the largest one.
+     * The memory of the decoded image is reserved in the image scheduler until the source is closed.
+     */
+    private class ThumbnailSource implements Closeable {
+
+        private final File file;
+        private int boxWidth;
+        private int boxHeight;
+        private BufferedImage image;
+        private ImageProcessingScheduler.Reservation reservation;
+
+        ThumbnailSource(File file, List<String> renditions) {
+            this.file = file;
+            FileManagerConfig config = getConfig();
+            for (String rendition : renditions) {
+                if (rendition.isEmpty()) {
+                    // reduced to the thumbnail width, whatever its height
+                    boxWidth = Math.max(boxWidth, config.getThumbnailMaxWidth());
+                    boxHeight = Integer.MAX_VALUE;
+                } else {
+                    boxWidth = Math.max(boxWidth, Integer.parseInt(rendition));
+                    boxHeight = Math.max(boxHeight, Integer.parseInt(rendition));
+                }
+            }
+        }
+
+        synchronized BufferedImage getImage() throws IOException {
+            if (image == null) {
+                if (reservation == null) {
+                    reservation = getImageScheduler(getConfig()).acquire(getEstimatedMemory());
+                }
+                image = ImageUtils.readSubsampled(file, boxWidth, boxHeight);
+                if (image == null) {
+                    throw new IOException("Unsupported image format: " + file.getName());
+                }
+            }
+            return image;
+        }
+
+        /**
+         * @return the memory of the decoded image estimated from its header, with the copies made to resize it
+         */
+        private long getEstimatedMemory() {
+            Dimension dim = ImageUtils.getImageSize(file);
+            if (dim.width <= 0 || dim.height <= 0) {
+                return 0;
+            }
+            int subsampling = ImageUtils.getSubsampling(dim.width, dim.height, boxWidth, boxHeight);
+            long pixels = (long) ((dim.width + subsampling - 1) / subsampling) * ((dim.height + subsampling - 1) / subsampling);
+            // the progressive resize halves the image at each step, its copies add up to less than half of it
+            return pixels * 4 * 3 / 2;
+        }
+
+        @Override
+        public synchronized void close() {
+            image = null;
+            if (reservation != null) {
+                reservation.close();
+                reservation = null;
+            }
+        }
     }
 
 }
\ No newline at end of file
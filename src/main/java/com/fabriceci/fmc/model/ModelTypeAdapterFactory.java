@@ -0,0 +1,233 @@
+package com.fabriceci.fmc.model;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Hand-written adapters for the models of the listings, so they are (de)serialized without reflection. The output is
+ * the same as the reflective one: fields in declaration order, null values omitted.
+ */
+public class ModelTypeAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> rawType = type.getRawType();
+        if (rawType == SuccessResponse.class) {
+            return (TypeAdapter<T>) new SuccessResponseAdapter(gson);
+        } else if (rawType == FileData.class) {
+            return (TypeAdapter<T>) new FileDataAdapter(gson.getAdapter(FileAttributes.class));
+        } else if (rawType == FileAttributes.class) {
+            return (TypeAdapter<T>) new FileAttributesAdapter();
+        }
+        return null;
+    }
+
+    private static class SuccessResponseAdapter extends TypeAdapter<SuccessResponse> {
+
+        private final Gson gson;
+
+        SuccessResponseAdapter(Gson gson) {
+            this.gson = gson;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void write(JsonWriter out, SuccessResponse value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            Object data = value.getData();
+            if (data != null) {
+                out.name("data");
+                ((TypeAdapter<Object>) gson.getAdapter(data.getClass())).write(out, data);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public SuccessResponse read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            SuccessResponse response = new SuccessResponse(null);
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("data")) {
+                    response.setData(gson.getAdapter(Object.class).read(in));
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return response;
+        }
+    }
+
+    private static class FileDataAdapter extends TypeAdapter<FileData> {
+
+        private final TypeAdapter<FileAttributes> attributesAdapter;
+
+        FileDataAdapter(TypeAdapter<FileAttributes> attributesAdapter) {
+            this.attributesAdapter = attributesAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, FileData value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            if (value.getId() != null) {
+                out.name("id").value(value.getId());
+            }
+            if (value.getType() != null) {
+                out.name("type").value(value.getType().name());
+            }
+            if (value.getAttributes() != null) {
+                out.name("attributes");
+                attributesAdapter.write(out, value.getAttributes());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public FileData read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            FileData fileData = new FileData();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "id":
+                        fileData.setId(in.nextString());
+                        break;
+                    case "type":
+                        fileData.setType(FileType.valueOf(in.nextString()));
+                        break;
+                    case "attributes":
+                        fileData.setAttributes(attributesAdapter.read(in));
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return fileData;
+        }
+    }
+
+    private static class FileAttributesAdapter extends TypeAdapter<FileAttributes> {
+
+        @Override
+        public void write(JsonWriter out, FileAttributes value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "name", value.getName());
+            writeString(out, "path", value.getPath());
+            out.name("readable").value(value.getReadable());
+            out.name("writable").value(value.getWritable());
+            writeNumber(out, "created", value.getCreated());
+            writeNumber(out, "modified", value.getModified());
+            writeNumber(out, "height", value.getHeight());
+            writeNumber(out, "width", value.getWidth());
+            writeNumber(out, "size", value.getSize());
+            writeString(out, "content", value.getContent());
+            writeNumber(out, "files", value.getFiles());
+            writeNumber(out, "folders", value.getFolders());
+            out.endObject();
+        }
+
+        @Override
+        public FileAttributes read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            FileAttributes attributes = new FileAttributes();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "name":
+                        attributes.setName(in.nextString());
+                        break;
+                    case "path":
+                        attributes.setPath(in.nextString());
+                        break;
+                    case "readable":
+                        attributes.setReadable(in.nextInt());
+                        break;
+                    case "writable":
+                        attributes.setWritable(in.nextInt());
+                        break;
+                    case "created":
+                        attributes.setCreated(in.nextLong());
+                        break;
+                    case "modified":
+                        attributes.setModified(in.nextLong());
+                        break;
+                    case "height":
+                        attributes.setHeight(in.nextInt());
+                        break;
+                    case "width":
+                        attributes.setWidth(in.nextInt());
+                        break;
+                    case "size":
+                        attributes.setSize(in.nextLong());
+                        break;
+                    case "content":
+                        attributes.setContent(in.nextString());
+                        break;
+                    case "files":
+                        attributes.setFiles(in.nextLong());
+                        break;
+                    case "folders":
+                        attributes.setFolders(in.nextLong());
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return attributes;
+        }
+
+        private static void writeString(JsonWriter out, String name, String value) throws IOException {
+            if (value != null) {
+                out.name(name).value(value);
+            }
+        }
+
+        private static void writeNumber(JsonWriter out, String name, Number value) throws IOException {
+            if (value != null) {
+                out.name(name).value(value);
+            }
+        }
+    }
+}
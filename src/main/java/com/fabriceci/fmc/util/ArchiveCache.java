@@ -0,0 +1,198 @@
+package com.fabriceci.fmc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Disk cache of the folder archives, keyed by the folder path and the fingerprint of its content.
+ * <p>
+ * The archives are rebuilt when the content of the folder changes, and the least recently used ones are removed when
+ * the total size goes over the budget.
+ */
+public class ArchiveCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveCache.class);
+
+    private static final String EXTENSION = ".zip";
+    private static final ConcurrentMap<String, ArchiveCache> instances = new ConcurrentHashMap<>();
+
+    private final File dir;
+    private volatile long maxSize;
+    // one build at a time per archive
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    public ArchiveCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the cache shared by all the file managers using the same directory
+     */
+    public static ArchiveCache getInstance(File dir, long maxSize) {
+        String key = dir.getAbsolutePath();
+        ArchiveCache cache = instances.get(key);
+        if (cache == null) {
+            ArchiveCache newCache = new ArchiveCache(dir.getAbsoluteFile(), maxSize);
+            cache = instances.putIfAbsent(key, newCache);
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+        cache.maxSize = maxSize;
+        return cache;
+    }
+
+    /**
+     * @param folderPath the relative path of the folder
+     * @param fingerprint the fingerprint of the folder content
+     * @param writer writes the archive, if it is not in the cache
+     * @return the archive file
+     */
+    public File get(String folderPath, String fingerprint, ArchiveWriter writer) throws IOException {
+        String name = getPrefix(folderPath) + fingerprint + EXTENSION;
+        File archive = new File(dir, name);
+
+        Object lock = new Object();
+        Object existingLock = locks.putIfAbsent(name, lock);
+        if (existingLock != null) {
+            lock = existingLock;
+        }
+
+        synchronized (lock) {
+            try {
+                if (archive.isFile()) {
+                    // the modification time is the last access time of the LRU
+                    archive.setLastModified(System.currentTimeMillis());
+                    return archive;
+                }
+
+                Files.createDirectories(dir.toPath());
+                File temp = File.createTempFile(name, ".tmp", dir);
+                try {
+                    try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+                        writer.write(out);
+                    }
+                    Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    Files.deleteIfExists(temp.toPath());
+                }
+            } finally {
+                locks.remove(name, lock);
+            }
+        }
+
+        evict(archive);
+        return archive;
+    }
+
+    /**
+     * Removes the archives of the folders containing the path, which is a file or a folder (ending with a slash).
+     */
+    public void invalidate(String path) {
+        String folderPath = path.endsWith("/") ? path : path.substring(0, path.lastIndexOf('/') + 1);
+        while (!folderPath.isEmpty()) {
+            final String prefix = getPrefix(folderPath);
+            File[] archives = dir.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    return file.getName().startsWith(prefix) && file.getName().endsWith(EXTENSION);
+                }
+            });
+            if (archives != null) {
+                for (File archive : archives) {
+                    delete(archive);
+                }
+            }
+            int index = folderPath.lastIndexOf('/', folderPath.length() - 2);
+            folderPath = index < 0 ? "" : folderPath.substring(0, index + 1);
+        }
+    }
+
+    /**
+     * Removes the least recently used archives until the total size fits the budget, keeping the given one.
+     */
+    private void evict(File keep) {
+        File[] archives = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(EXTENSION);
+            }
+        });
+        if (archives == null) {
+            return;
+        }
+
+        long totalSize = 0;
+        for (File archive : archives) {
+            totalSize += archive.length();
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(archives, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File archive : archives) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            if (archive.equals(keep)) {
+                continue;
+            }
+            long length = archive.length();
+            if (delete(archive)) {
+                totalSize -= length;
+            }
+        }
+    }
+
+    private static boolean delete(File archive) {
+        // an archive being sent stays readable by the request sending it
+        if (!archive.delete() && archive.exists()) {
+            logger.debug("Unable to delete the archive: " + archive);
+            return false;
+        }
+        return true;
+    }
+
+    private static String getPrefix(String folderPath) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(folderPath.getBytes(StandardCharsets.UTF_8));
+            return toHex(hash, 8) + "-";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes, int length) {
+        StringBuilder hex = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    public interface ArchiveWriter {
+        void write(OutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,333 @@
+package com.fabriceci.fmc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Staging area of the uploads sent in chunks, keyed by the relative path of the target file.
+ * <p>
+ * Each upload has a staging file, where the chunks are written at their position, and an index of the ranges
+ * received so far. The chunks can arrive in any order and be sent again, so an interrupted upload is resumed from the
+ * received bytes. The uploads not updated for a while are removed by a background task.
+ */
+public class ChunkedUploadStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedUploadStore.class);
+
+    private static final String DATA_EXTENSION = ".part";
+    private static final String INDEX_EXTENSION = ".index";
+    private static final int BUFFER_SIZE = 65536;
+    private static final ConcurrentMap<String, ChunkedUploadStore> instances = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService collector;
+
+    private final File dir;
+    private volatile long expiration;
+    // one chunk at a time per upload, a lock is kept while a thread holds or waits for it
+    private final Map<String, UploadLock> locks = new HashMap<>();
+
+    public ChunkedUploadStore(File dir, long expiration) {
+        this.dir = dir;
+        this.expiration = expiration;
+    }
+
+    /**
+     * @param expiration the time after which an upload not updated is removed, in milliseconds
+     * @return the store shared by all the file managers using the same directory, its expired uploads are removed
+     * periodically
+     */
+    public static ChunkedUploadStore getInstance(File dir, long expiration) {
+        String key = dir.getAbsolutePath();
+        ChunkedUploadStore store = instances.get(key);
+        if (store == null) {
+            ChunkedUploadStore newStore = new ChunkedUploadStore(dir.getAbsoluteFile(), expiration);
+            store = instances.putIfAbsent(key, newStore);
+            if (store == null) {
+                store = newStore;
+                scheduleCollection(store);
+            }
+        }
+        store.expiration = expiration;
+        return store;
+    }
+
+    /**
+     * Stops removing the expired uploads in the background, and forgets the shared stores.
+     */
+    public static synchronized void shutdown() {
+        if (collector != null) {
+            collector.shutdownNow();
+            collector = null;
+        }
+        instances.clear();
+    }
+
+    private static synchronized void scheduleCollection(final ChunkedUploadStore store) {
+        if (collector == null) {
+            collector = Executors.newSingleThreadScheduledExecutor(ThreadPools.newThreadFactory("uploads"));
+        }
+        collector.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store.removeExpired();
+                } catch (RuntimeException e) {
+                    logger.error("Error removing the expired uploads of: " + store.dir, e);
+                }
+            }
+        }, 1, 60, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Writes a chunk at its position in the staging file of the upload.
+     *
+     * @param path  the relative path of the target file
+     * @param start the position of the first byte of the chunk
+     * @param end   the position of the last byte of the chunk
+     * @param total the size of the whole file
+     * @return the number of bytes received from the start of the file, without gap
+     * @throws IOException if the chunk is shorter or longer than its range, or does not match the previous chunks
+     */
+    public long write(String path, long start, long end, long total, InputStream in) throws IOException {
+        String name = getName(path);
+        UploadLock lock = acquireLock(name);
+        try {
+            synchronized (lock) {
+                Files.createDirectories(dir.toPath());
+                File indexFile = new File(dir, name + INDEX_EXTENSION);
+                Index index = Index.read(indexFile);
+                if (index == null || index.total != total) {
+                    // new upload, or the file sent under this name has changed
+                    index = new Index(total);
+                }
+
+                try (FileChannel channel = FileChannel.open(new File(dir, name + DATA_EXTENSION).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    if (index.ranges.isEmpty()) {
+                        channel.truncate(0);
+                    }
+                    long written = copy(in, channel, start, end - start + 1);
+                    if (written != end - start + 1) {
+                        throw new IOException("The chunk is shorter than its range: " + written + " of " + (end - start + 1));
+                    }
+                }
+
+                // the index is updated once the data is written, it never covers missing bytes
+                index.add(start, end + 1);
+                index.write(indexFile);
+                return index.getContiguousSize();
+            }
+        } finally {
+            releaseLock(name, lock);
+        }
+    }
+
+    /**
+     * @return the number of bytes received from the start of the file, or -1 if there is no upload for this path
+     */
+    public long getReceivedSize(String path) throws IOException {
+        String name = getName(path);
+        UploadLock lock = acquireLock(name);
+        try {
+            synchronized (lock) {
+                Index index = Index.read(new File(dir, name + INDEX_EXTENSION));
+                return index != null ? index.getContiguousSize() : -1;
+            }
+        } finally {
+            releaseLock(name, lock);
+        }
+    }
+
+    /**
+     * Moves the staging file of a complete upload to its target, and removes the upload.
+     *
+     * @return false if the upload is not complete, or has already been moved by a concurrent request
+     */
+    public boolean moveTo(String path, Path target) throws IOException {
+        String name = getName(path);
+        UploadLock lock = acquireLock(name);
+        try {
+            synchronized (lock) {
+                File indexFile = new File(dir, name + INDEX_EXTENSION);
+                Index index = Index.read(indexFile);
+                if (index == null || index.getContiguousSize() < index.total) {
+                    return false;
+                }
+                Path data = new File(dir, name + DATA_EXTENSION).toPath();
+                try {
+                    Files.move(data, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    // the staging dir is on another file system, the file is copied next to the target first
+                    Path temp = Files.createTempFile(target.getParent(), ".upload-", ".tmp");
+                    try {
+                        Files.copy(data, temp, StandardCopyOption.REPLACE_EXISTING);
+                        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        Files.deleteIfExists(temp);
+                    }
+                    Files.delete(data);
+                }
+                Files.delete(indexFile.toPath());
+                return true;
+            }
+        } finally {
+            releaseLock(name, lock);
+        }
+    }
+
+    /**
+     * Removes the uploads not updated since the expiration time.
+     */
+    public void removeExpired() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long limit = System.currentTimeMillis() - expiration;
+        for (File file : files) {
+            if (file.lastModified() < limit && (file.getName().endsWith(DATA_EXTENSION) || file.getName().endsWith(INDEX_EXTENSION))) {
+                String name = file.getName().substring(0, file.getName().lastIndexOf('.'));
+                UploadLock lock = acquireLock(name);
+                try {
+                    synchronized (lock) {
+                        // a chunk may have been written meanwhile
+                        if (file.lastModified() < limit && !file.delete() && file.exists()) {
+                            logger.debug("Unable to delete the expired upload: " + file);
+                        }
+                    }
+                } finally {
+                    releaseLock(name, lock);
+                }
+            }
+        }
+    }
+
+    private UploadLock acquireLock(String name) {
+        synchronized (locks) {
+            UploadLock lock = locks.get(name);
+            if (lock == null) {
+                lock = new UploadLock();
+                locks.put(name, lock);
+            }
+            lock.users++;
+            return lock;
+        }
+    }
+
+    private void releaseLock(String name, UploadLock lock) {
+        synchronized (locks) {
+            if (--lock.users == 0) {
+                locks.remove(name);
+            }
+        }
+    }
+
+    private static long copy(InputStream in, FileChannel channel, long position, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long written = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (written + read > length) {
+                throw new IOException("The chunk is longer than its range: " + length);
+            }
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer, position + written + byteBuffer.position());
+            }
+            written += read;
+        }
+        return written;
+    }
+
+    private static String getName(String path) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(path.getBytes(StandardCharsets.UTF_8));
+            return ArchiveCache.toHex(hash, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The lock of an upload, with the number of threads holding it or waiting for it.
+     */
+    private static class UploadLock {
+        int users;
+    }
+
+    /**
+     * The size of the file and the ranges received, sorted and merged. Persisted as text: the size on the first line,
+     * then a range per line ("start-end", end excluded).
+     */
+    private static class Index {
+        final long total;
+        final List<long[]> ranges = new ArrayList<>();
+
+        Index(long total) {
+            this.total = total;
+        }
+
+        static Index read(File file) throws IOException {
+            if (!file.isFile()) {
+                return null;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                Index index = new Index(Long.parseLong(reader.readLine()));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int separator = line.indexOf('-');
+                    index.ranges.add(new long[]{Long.parseLong(line.substring(0, separator)), Long.parseLong(line.substring(separator + 1))});
+                }
+                return index;
+            } catch (NumberFormatException | StringIndexOutOfBoundsException | NullPointerException e) {
+                logger.debug("Ignoring the corrupt upload index: " + file);
+                return null;
+            }
+        }
+
+        void write(File file) throws IOException {
+            StringBuilder text = new StringBuilder().append(total).append('\n');
+            for (long[] range : ranges) {
+                text.append(range[0]).append('-').append(range[1]).append('\n');
+            }
+            File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            try {
+                Files.write(temp.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+        }
+
+        void add(long start, long end) {
+            int i = 0;
+            while (i < ranges.size() && ranges.get(i)[1] < start) {
+                i++;
+            }
+            // merge with the overlapping or adjacent ranges
+            while (i < ranges.size() && ranges.get(i)[0] <= end) {
+                long[] range = ranges.remove(i);
+                start = Math.min(start, range[0]);
+                end = Math.max(end, range[1]);
+            }
+            ranges.add(i, new long[]{start, end});
+        }
+
+        long getContiguousSize() {
+            return !ranges.isEmpty() && ranges.get(0)[0] == 0 ? ranges.get(0)[1] : 0;
+        }
+    }
+}
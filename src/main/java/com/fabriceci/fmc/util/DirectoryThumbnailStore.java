@@ -0,0 +1,220 @@
+package com.fabriceci.fmc.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Thumbnail store mirroring the tree of the images: the default rendition of "/a/b.jpg" is the file "a/b.jpg" under
+ * the store root, and its rendition "200" is "a/b.jpg@200". A folder of images has a folder of thumbnails, so it is
+ * moved or removed in one operation.
+ */
+public class DirectoryThumbnailStore implements ThumbnailStore {
+
+    private static final char RENDITION_SEPARATOR = '@';
+    private static final String TEMP_PREFIX = ".thumb-";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File root;
+    private final Set<String> reservedDirs;
+
+    public DirectoryThumbnailStore(File root) {
+        this(root, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param reservedDirs the names of the folders of the root used by the other caches kept in the thumbnail dir
+     */
+    public DirectoryThumbnailStore(File root, Set<String> reservedDirs) {
+        this.root = root;
+        this.reservedDirs = reservedDirs;
+    }
+
+    /**
+     * @return the file of a rendition, which may not exist
+     */
+    public File getFile(String path, String rendition) {
+        return new File(root.getPath() + path + (rendition.isEmpty() ? "" : RENDITION_SEPARATOR + rendition));
+    }
+
+    @Override
+    public Thumbnail get(String path, String rendition, long sourceLastModified) throws IOException {
+        File file = getFile(path, rendition);
+        // a thumbnail older than its image is from a replaced image
+        if (!file.isFile() || file.lastModified() < sourceLastModified) {
+            return null;
+        }
+        return new Thumbnail(Files.readAllBytes(file.toPath()));
+    }
+
+    @Override
+    public void put(String path, String rendition, Thumbnail thumbnail) throws IOException {
+        File file = getFile(path, rendition);
+        Path dir = file.getParentFile().toPath();
+        Files.createDirectories(dir);
+
+        // written next to the thumbnail, then renamed
+        Path tempFile = Files.createTempFile(dir, TEMP_PREFIX, TEMP_SUFFIX);
+        try {
+            Files.write(tempFile, thumbnail.getData());
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Override
+    public void move(String sourcePath, String targetPath) throws IOException {
+        if (sourcePath.endsWith("/")) {
+            File source = getFile(sourcePath, "");
+            if (source.isDirectory()) {
+                File target = getFile(targetPath, "");
+                Files.createDirectories(target.getParentFile().toPath());
+                Files.move(source.toPath(), target.toPath());
+            }
+            return;
+        }
+
+        String sourceName = FileUtils.getName(sourcePath);
+        File target = getFile(targetPath, "");
+        for (File file : listRenditions(sourcePath)) {
+            Files.createDirectories(target.getParentFile().toPath());
+            String suffix = file.getName().substring(sourceName.length());
+            Files.move(file.toPath(), new File(target.getPath() + suffix).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+        if (path.endsWith("/")) {
+            File dir = getFile(path, "");
+            if (dir.isDirectory()) {
+                FileUtils.removeDirectory(dir.toPath());
+            }
+            return;
+        }
+        for (File file : listRenditions(path)) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Override
+    public void delete(String path, String rendition) throws IOException {
+        Files.deleteIfExists(getFile(path, rendition).toPath());
+    }
+
+    /**
+     * Walks the tree of the thumbnails, listing each folder when it is reached. The files which are not thumbnails are
+     * skipped: the reserved folders of the root, the image dimensions of each folder and the temp files.
+     */
+    @Override
+    public Iterator<StoredThumbnail> iterator() {
+        return new Iterator<StoredThumbnail>() {
+            private final Deque<File> dirs = new ArrayDeque<>();
+            private final Deque<File> files = new ArrayDeque<>();
+            private StoredThumbnail next;
+
+            {
+                dirs.push(root);
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    if (!files.isEmpty()) {
+                        next = toStoredThumbnail(files.poll());
+                    } else if (!dirs.isEmpty()) {
+                        File dir = dirs.pop();
+                        File[] children = dir.listFiles();
+                        if (children == null) {
+                            continue;
+                        }
+                        for (File child : children) {
+                            if (isReserved(dir, child)) {
+                                continue;
+                            }
+                            if (child.isDirectory()) {
+                                dirs.push(child);
+                            } else {
+                                files.add(child);
+                            }
+                        }
+                    } else {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public StoredThumbnail next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                StoredThumbnail thumbnail = next;
+                next = null;
+                return thumbnail;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return the thumbnail stored in the file, or null if the file has been removed
+     */
+    private StoredThumbnail toStoredThumbnail(File file) {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        if (lastModified == 0) {
+            return null;
+        }
+        String path = file.getPath().substring(root.getPath().length()).replace(File.separatorChar, '/');
+        String rendition = "";
+        int separator = path.lastIndexOf(RENDITION_SEPARATOR);
+        if (separator > path.lastIndexOf('/') && separator < path.length() - 1 && isNumber(path.substring(separator + 1))) {
+            rendition = path.substring(separator + 1);
+            path = path.substring(0, separator);
+        }
+        return new StoredThumbnail(path, rendition, size, lastModified);
+    }
+
+    private boolean isReserved(File dir, File file) {
+        String name = file.getName();
+        if (name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX)) {
+            return true;
+        }
+        if (name.equals(ImageMetadataCache.STORE_FILE_NAME)
+                || name.startsWith(ImageMetadataCache.STORE_FILE_NAME) && name.endsWith(ImageMetadataCache.TEMP_SUFFIX)) {
+            return true;
+        }
+        return dir.equals(root) && reservedDirs.contains(name);
+    }
+
+    private static boolean isNumber(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File[] listRenditions(String path) {
+        final String name = FileUtils.getName(path);
+        File[] files = getFile(path, "").getParentFile().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && (file.getName().equals(name) || file.getName().startsWith(name + RENDITION_SEPARATOR));
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+}
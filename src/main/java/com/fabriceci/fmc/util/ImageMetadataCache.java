@@ -0,0 +1,264 @@
+package com.fabriceci.fmc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of image dimensions keyed by relative path, last modified time and size.
+ * <p>
+ * Entries are grouped by folder: the in-memory tier is a LRU of folders bounded by the total number of entries, and
+ * each folder is persisted in a small properties file mirroring the folder under the store root (the thumbnail dir).
+ */
+public class ImageMetadataCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageMetadataCache.class);
+
+    static final String STORE_FILE_NAME = ".dimensions";
+    static final String TEMP_SUFFIX = ".tmp";
+    private static final ConcurrentMap<String, ImageMetadataCache> instances = new ConcurrentHashMap<>();
+
+    private final File storeRoot;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Map<String, Entry>> folders = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> dirtyFolders = new HashSet<>();
+    private int size = 0;
+
+    public ImageMetadataCache(File storeRoot, int maxEntries) {
+        this.storeRoot = storeRoot;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the cache shared by all the file managers using the same store root
+     */
+    public static ImageMetadataCache getInstance(File storeRoot, int maxEntries) {
+        String key = storeRoot.getAbsolutePath();
+        ImageMetadataCache cache = instances.get(key);
+        if (cache == null) {
+            ImageMetadataCache newCache = new ImageMetadataCache(storeRoot.getAbsoluteFile(), maxEntries);
+            cache = instances.putIfAbsent(key, newCache);
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @param path the relative path of the image
+     * @return the cached dimension, or null if the image is unknown or has changed since it was cached
+     */
+    public synchronized Dimension get(String path, long lastModified, long length) {
+        Entry entry = getFolder(getFolderPath(path)).get(FileUtils.getName(path));
+        if (entry == null || entry.lastModified != lastModified || entry.length != length) {
+            return null;
+        }
+        return new Dimension(entry.width, entry.height);
+    }
+
+    public synchronized void put(String path, long lastModified, long length, Dimension dim) {
+        String folderPath = getFolderPath(path);
+        Map<String, Entry> folder = getFolder(folderPath);
+        if (folder.put(FileUtils.getName(path), new Entry(lastModified, length, dim.width, dim.height)) == null) {
+            size++;
+        }
+        dirtyFolders.add(folderPath);
+        evict(folderPath);
+    }
+
+    /**
+     * Removes a file, or a folder (path ending with a slash) and all its content, from the cache.
+     */
+    public synchronized void invalidate(String path) {
+        if (path.endsWith("/")) {
+            Iterator<Map.Entry<String, Map<String, Entry>>> it = folders.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Map<String, Entry>> folder = it.next();
+                if (folder.getKey().startsWith(path)) {
+                    size -= folder.getValue().size();
+                    dirtyFolders.remove(folder.getKey());
+                    it.remove();
+                }
+            }
+            // the thumbnails may not be stored in folders, which would otherwise leave the store files behind
+            deleteStoreFiles(path);
+        } else {
+            String folderPath = getFolderPath(path);
+            if (getFolder(folderPath).remove(FileUtils.getName(path)) != null) {
+                size--;
+                dirtyFolders.add(folderPath);
+            }
+        }
+    }
+
+    /**
+     * Writes the modified folders to the disk store.
+     */
+    public synchronized void flush() {
+        for (String folderPath : dirtyFolders) {
+            Map<String, Entry> folder = folders.get(folderPath);
+            if (folder != null) {
+                write(folderPath, folder);
+            }
+        }
+        dirtyFolders.clear();
+    }
+
+    /**
+     * Deletes the store files of a folder and its subfolders, and the folders of the store left empty.
+     */
+    private void deleteStoreFiles(String folderPath) {
+        final Path start = new File(storeRoot.getPath() + folderPath).toPath();
+        if (!Files.isDirectory(start)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    String name = file.getFileName().toString();
+                    if (name.startsWith(STORE_FILE_NAME) && (name.equals(STORE_FILE_NAME) || name.endsWith(TEMP_SUFFIX))) {
+                        Files.deleteIfExists(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    if (!dir.equals(storeRoot.toPath())) {
+                        try {
+                            Files.deleteIfExists(dir);
+                        } catch (DirectoryNotEmptyException ignored) {
+                            // holds thumbnails
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Unable to delete the image metadata store of: " + start, e);
+        }
+    }
+
+    private Map<String, Entry> getFolder(String folderPath) {
+        Map<String, Entry> folder = folders.get(folderPath);
+        if (folder == null) {
+            folder = read(folderPath);
+            folders.put(folderPath, folder);
+            size += folder.size();
+            evict(folderPath);
+        }
+        return folder;
+    }
+
+    private void evict(String currentFolderPath) {
+        Iterator<Map.Entry<String, Map<String, Entry>>> it = folders.entrySet().iterator();
+        while (size > maxEntries && it.hasNext()) {
+            Map.Entry<String, Map<String, Entry>> folder = it.next();
+            if (folder.getKey().equals(currentFolderPath)) {
+                continue;
+            }
+            if (dirtyFolders.remove(folder.getKey())) {
+                write(folder.getKey(), folder.getValue());
+            }
+            size -= folder.getValue().size();
+            it.remove();
+        }
+    }
+
+    private Map<String, Entry> read(String folderPath) {
+        Map<String, Entry> folder = new HashMap<>();
+        File storeFile = getStoreFile(folderPath);
+        if (!storeFile.isFile()) {
+            return folder;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream is = new BufferedInputStream(new FileInputStream(storeFile))) {
+            properties.load(is);
+        } catch (IOException e) {
+            logger.warn("Unable to read the image metadata store: " + storeFile.getAbsolutePath(), e);
+            return folder;
+        }
+
+        for (String name : properties.stringPropertyNames()) {
+            Entry entry = Entry.parse(properties.getProperty(name));
+            if (entry != null) {
+                folder.put(name, entry);
+            }
+        }
+        return folder;
+    }
+
+    private void write(String folderPath, Map<String, Entry> folder) {
+        File storeFile = getStoreFile(folderPath);
+        try {
+            if (folder.isEmpty()) {
+                Files.deleteIfExists(storeFile.toPath());
+                return;
+            }
+
+            Properties properties = new Properties();
+            for (Map.Entry<String, Entry> entry : folder.entrySet()) {
+                properties.setProperty(entry.getKey(), entry.getValue().toString());
+            }
+
+            Files.createDirectories(storeFile.getParentFile().toPath());
+            File tempFile = File.createTempFile(STORE_FILE_NAME, TEMP_SUFFIX, storeFile.getParentFile());
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+                properties.store(os, null);
+            }
+            Files.move(tempFile.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to write the image metadata store: " + storeFile.getAbsolutePath(), e);
+        }
+    }
+
+    private File getStoreFile(String folderPath) {
+        return new File(storeRoot.getPath() + folderPath + STORE_FILE_NAME);
+    }
+
+    private static String getFolderPath(String path) {
+        return path.substring(0, path.lastIndexOf('/') + 1);
+    }
+
+    private static class Entry {
+        final long lastModified;
+        final long length;
+        final int width;
+        final int height;
+
+        Entry(long lastModified, long length, int width, int height) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.width = width;
+            this.height = height;
+        }
+
+        static Entry parse(String value) {
+            List<String> values = Arrays.asList(value.split(","));
+            if (values.size() != 4) {
+                return null;
+            }
+            try {
+                return new Entry(Long.parseLong(values.get(0)), Long.parseLong(values.get(1)), Integer.parseInt(values.get(2)), Integer.parseInt(values.get(3)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return lastModified + "," + length + "," + width + "," + height;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.fabriceci.fmc.util;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control of the image decodings, shared by the file managers.
+ * <p>
+ * Each job reserves the memory of its bitmaps, estimated from the image size, before decoding. The jobs run while the
+ * number of running jobs and their reserved memory are within the limits, the other ones wait in turn. A job waiting
+ * for too long, or arriving when too many jobs are waiting, is rejected. A job larger than the whole budget runs
+ * alone.
+ */
+public class ImageProcessingScheduler {
+
+    private int concurrency;
+    private long memoryBudget;
+    private int queueSize;
+    private long timeoutNanos;
+
+    // the waiting jobs, in arrival order
+    private final Queue<Object> waiting = new ArrayDeque<>();
+    private int running;
+    private long reservedMemory;
+    private long peakMemory;
+    private long completed;
+    private long queued;
+    private long rejected;
+
+    /**
+     * @param concurrency  the maximum number of jobs running at once
+     * @param memoryBudget the maximum memory reserved by the running jobs, in bytes
+     * @param queueSize    the maximum number of jobs waiting
+     * @param timeout      the maximum time a job waits, in milliseconds
+     */
+    public ImageProcessingScheduler(int concurrency, long memoryBudget, int queueSize, long timeout) {
+        setLimits(concurrency, memoryBudget, queueSize, timeout);
+    }
+
+    /**
+     * Changes the limits, the running jobs are not affected.
+     */
+    public synchronized void setLimits(int concurrency, long memoryBudget, int queueSize, long timeout) {
+        this.concurrency = Math.max(concurrency, 1);
+        this.memoryBudget = Math.max(memoryBudget, 1);
+        this.queueSize = Math.max(queueSize, 0);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+        notifyAll();
+    }
+
+    /**
+     * Waits until the job can run, and reserves its memory.
+     *
+     * @param memory the estimated memory of the job, in bytes
+     * @return the reservation, to be closed once the bitmaps of the job are released
+     * @throws RejectedExecutionException if too many jobs are waiting, or if the job has waited for too long
+     */
+    public synchronized Reservation acquire(long memory) throws InterruptedIOException {
+        if (waiting.isEmpty() && canRun(memory)) {
+            return reserve(memory);
+        }
+        if (waiting.size() >= queueSize) {
+            rejected++;
+            throw new RejectedExecutionException("Too many images waiting to be processed: " + waiting.size());
+        }
+
+        Object ticket = new Object();
+        waiting.add(ticket);
+        queued++;
+        try {
+            long deadline = System.nanoTime() + timeoutNanos;
+            // first come, first served: a large image is not overtaken by the small ones indefinitely
+            while (waiting.peek() != ticket || !canRun(memory)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    rejected++;
+                    throw new RejectedExecutionException("Timeout waiting to process an image of " + memory + " bytes");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return reserve(memory);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to process an image");
+        } finally {
+            waiting.remove(ticket);
+            // the next job may run now
+            notifyAll();
+        }
+    }
+
+    private boolean canRun(long memory) {
+        return running < concurrency && (reservedMemory + memory <= memoryBudget || running == 0);
+    }
+
+    private Reservation reserve(long memory) {
+        running++;
+        reservedMemory += memory;
+        peakMemory = Math.max(peakMemory, reservedMemory);
+        return new Reservation(memory);
+    }
+
+    private synchronized void release(long memory) {
+        running--;
+        reservedMemory -= memory;
+        completed++;
+        notifyAll();
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * @return the memory reserved by the running jobs, in bytes
+     */
+    public synchronized long getReservedMemory() {
+        return reservedMemory;
+    }
+
+    /**
+     * @return the highest memory reserved at once, in bytes
+     */
+    public synchronized long getPeakMemory() {
+        return peakMemory;
+    }
+
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    public synchronized long getCompletedCount() {
+        return completed;
+    }
+
+    /**
+     * @return the number of jobs which had to wait before running or being rejected
+     */
+    public synchronized long getQueuedCount() {
+        return queued;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImageProcessingScheduler[running=" + running + "/" + concurrency + ", waiting=" + waiting.size()
+                + ", memory=" + reservedMemory + "/" + memoryBudget + ", peak=" + peakMemory + ", completed=" + completed
+                + ", queued=" + queued + ", rejected=" + rejected + "]";
+    }
+
+    /**
+     * The memory reserved by a running job.
+     */
+    public class Reservation implements Closeable {
+
+        private final long memory;
+        private boolean released;
+
+        private Reservation(long memory) {
+            this.memory = memory;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ImageProcessingScheduler.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            release(memory);
+        }
+    }
+}
@@ -1,37 +1,255 @@
 package com.fabriceci.fmc.util;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.File;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ImageUtils {
 
+    private static final int SVG_HEADER_SIZE = 4096;
+    private static final Pattern SVG_ROOT = Pattern.compile("<svg\\b[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SVG_WIDTH = Pattern.compile("\\swidth\\s*=\\s*[\"']\\s*([0-9.]+)\\s*(px)?\\s*[\"']");
+    private static final Pattern SVG_HEIGHT = Pattern.compile("\\sheight\\s*=\\s*[\"']\\s*([0-9.]+)\\s*(px)?\\s*[\"']");
+    private static final Pattern SVG_VIEWBOX = Pattern.compile("\\sviewBox\\s*=\\s*[\"']\\s*[-0-9.]+[\\s,]+[-0-9.]+[\\s,]+([0-9.]+)[\\s,]+([0-9.]+)\\s*[\"']");
+
     public static Dimension getImageSize(String path){
+        return getImageSize(new File(path));
+    }
+
+    /**
+     * Returns the dimension of an image without decoding its pixels.
+     * <p>
+     * The size is read from the file header (JPEG SOF, PNG IHDR, GIF, BMP and SVG root element), then from the
+     * ImageIO reader metadata for the other formats.
+     *
+     * @param file the image file
+     * @return the dimension of the image, or an empty dimension if it cannot be read
+     */
+    public static Dimension getImageSize(File file){
 
-        BufferedImage readImage = null;
-        Dimension dim = new Dimension();
+        Dimension dim = null;
         try {
-            readImage = ImageIO.read(new File(path));
-            dim.height = readImage.getHeight();
-            dim.width = readImage.getWidth();
-        } catch (Exception e) {
-            readImage = null;
+            dim = readHeaderSize(file);
+            if (dim == null) {
+                dim = readReaderSize(file);
+            }
+        } catch (Exception ignore) {
         }
-        return dim;
+        return dim == null ? new Dimension() : dim;
     }
 
-    public static Dimension getImageSize(File file){
+    /**
+     * Reads an image to be reduced to fit in a box, skipping pixels while decoding so the memory used is proportional
+     * to the reduced image rather than to the original one.
+     * <p>
+     * The decoded image keeps at least twice the resolution of the reduced one, so the resize can still antialias.
+     *
+     * @param boxWidth  the width of the box, Integer.MAX_VALUE if only the height is constrained
+     * @param boxHeight the height of the box, Integer.MAX_VALUE if only the width is constrained
+     * @return the image, or null if there is no reader for its format
+     */
+    public static BufferedImage readSubsampled(File file, int boxWidth, int boxHeight) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            if (iis == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = getSubsampling(reader.getWidth(0), reader.getHeight(0), boxWidth, boxHeight);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
 
-        BufferedImage readImage = null;
-        Dimension dim = new Dimension();
-        try {
-            readImage = ImageIO.read(file);
-            dim.height = readImage.getHeight();
-            dim.width = readImage.getWidth();
-        } catch (Exception e) {
-            readImage = null;
+    /**
+     * @return the number of pixels of the image per pixel decoded, on each axis
+     */
+    public static int getSubsampling(int width, int height, int boxWidth, int boxHeight) {
+        // the image fitted in the box is reduced by the largest of the two ratios
+        double ratio = Math.max((double) width / boxWidth, (double) height / boxHeight);
+        return Math.max(1, (int) (ratio / 2));
+    }
+
+    private static Dimension readHeaderSize(File file) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            in.mark(SVG_HEADER_SIZE);
+            int b0 = in.read();
+            int b1 = in.read();
+
+            if (b0 == 0xFF && b1 == 0xD8) {
+                return readJpegSize(in);
+            } else if (b0 == 0x89 && b1 == 'P') {
+                return readPngSize(in);
+            } else if (b0 == 'G' && b1 == 'I') {
+                return readGifSize(in);
+            } else if (b0 == 'B' && b1 == 'M') {
+                return readBmpSize(in);
+            }
+
+            in.reset();
+            return readSvgSize(in);
+        }
+    }
+
+    private static Dimension readJpegSize(DataInputStream in) throws IOException {
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xFF) {
+                return null;
+            }
+            // skip fill bytes
+            while (marker == 0xFF) {
+                marker = in.readUnsignedByte();
+            }
+            // standalone markers: TEM, RSTn, SOI
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                continue;
+            }
+            // end of image or start of scan without any frame header
+            if (marker == 0xD9 || marker == 0xDA) {
+                return null;
+            }
+            int length = in.readUnsignedShort();
+            if (length < 2) {
+                return null;
+            }
+            // SOF0..SOF15 except DHT (C4), JPG (C8) and DAC (CC)
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                in.readUnsignedByte(); // sample precision
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                return new Dimension(width, height);
+            }
+            skipFully(in, length - 2);
+        }
+    }
+
+    private static Dimension readPngSize(DataInputStream in) throws IOException {
+        // signature (8 bytes), IHDR chunk length (4 bytes) and type (4 bytes)
+        skipFully(in, 6 + 4);
+        byte[] type = new byte[4];
+        in.readFully(type);
+        if (!"IHDR".equals(new String(type, StandardCharsets.US_ASCII))) {
+            return null;
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        return new Dimension(width, height);
+    }
+
+    private static Dimension readGifSize(DataInputStream in) throws IOException {
+        // "GIF87a" or "GIF89a", then the logical screen width and height
+        skipFully(in, 4);
+        int width = readUnsignedShortLE(in);
+        int height = readUnsignedShortLE(in);
+        return new Dimension(width, height);
+    }
+
+    private static Dimension readBmpSize(DataInputStream in) throws IOException {
+        // file header (14 bytes), then the DIB header size
+        skipFully(in, 12);
+        int headerSize = readIntLE(in);
+        if (headerSize == 12) {
+            // BITMAPCOREHEADER
+            int width = readUnsignedShortLE(in);
+            int height = readUnsignedShortLE(in);
+            return new Dimension(width, height);
+        }
+        int width = readIntLE(in);
+        int height = readIntLE(in);
+        // a negative height means a top-down bitmap
+        return new Dimension(Math.abs(width), Math.abs(height));
+    }
+
+    private static Dimension readSvgSize(InputStream in) throws IOException {
+        byte[] buffer = new byte[SVG_HEADER_SIZE];
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+
+        String header = new String(buffer, 0, length, StandardCharsets.UTF_8);
+        Matcher root = SVG_ROOT.matcher(header);
+        if (!root.find()) {
+            return null;
+        }
+
+        String svg = root.group();
+        Matcher width = SVG_WIDTH.matcher(svg);
+        Matcher height = SVG_HEIGHT.matcher(svg);
+        if (width.find() && height.find()) {
+            return new Dimension((int) Double.parseDouble(width.group(1)), (int) Double.parseDouble(height.group(1)));
+        }
+
+        Matcher viewBox = SVG_VIEWBOX.matcher(svg);
+        if (viewBox.find()) {
+            return new Dimension((int) Double.parseDouble(viewBox.group(1)), (int) Double.parseDouble(viewBox.group(2)));
         }
-        return dim;
+
+        return new Dimension();
+    }
+
+    private static Dimension readReaderSize(File file) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            if (iis == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    private static int readUnsignedShortLE(DataInputStream in) throws IOException {
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        return b0 | (b1 << 8);
+    }
+
+    private static int readIntLE(DataInputStream in) throws IOException {
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        int b2 = in.readUnsignedByte();
+        int b3 = in.readUnsignedByte();
+        return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
     }
 }
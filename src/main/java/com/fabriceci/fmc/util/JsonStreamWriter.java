@@ -0,0 +1,44 @@
+package com.fabriceci.fmc.util;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a success response whose data is an array, one item at a time, so the whole array never has to be held in
+ * memory.
+ */
+public class JsonStreamWriter implements Closeable {
+
+    private final Gson gson;
+    private final JsonWriter writer;
+
+    public JsonStreamWriter(Gson gson, Writer writer) throws IOException {
+        this.gson = gson;
+        this.writer = gson.newJsonWriter(writer);
+        this.writer.beginObject();
+        this.writer.name("data");
+        this.writer.beginArray();
+    }
+
+    public void write(Object item) throws IOException {
+        gson.toJson(item, item.getClass(), writer);
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Ends the array and the response, without closing the underlying writer.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
+}
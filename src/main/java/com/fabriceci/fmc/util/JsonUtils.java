@@ -0,0 +1,17 @@
+package com.fabriceci.fmc.util;
+
+import com.fabriceci.fmc.model.ModelTypeAdapterFactory;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+public class JsonUtils {
+
+    // Gson is thread-safe and caches its adapters: a single instance avoids rebuilding them on each request
+    private static final Gson gson = new GsonBuilder()
+            .registerTypeAdapterFactory(new ModelTypeAdapterFactory())
+            .create();
+
+    public static Gson getGson() {
+        return gson;
+    }
+}
@@ -0,0 +1,702 @@
+package com.fabriceci.fmc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Thumbnail store packing the thumbnails in a few large files, instead of a file per thumbnail.
+ * <p>
+ * The thumbnails are spread over shards by key. Each shard appends its thumbnails to segment files, a record holding
+ * the key, the generation time, the length and the checksum of the thumbnail, then its bytes. A removal appends a
+ * record without bytes. The index of each shard (key to segment, offset and length) is kept in memory, and rebuilt
+ * from the record headers when the store is opened; an incomplete record at the end of a segment, left by a crash,
+ * is cut off. The thumbnails are read with positional reads.
+ * <p>
+ * The replaced and removed thumbnails are reclaimed by a background task, which rewrites the live thumbnails of a
+ * shard once most of its bytes are unused.
+ */
+public class PackThumbnailStore implements ThumbnailStore, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackThumbnailStore.class);
+
+    private static final int MAGIC = 0x54484D42;
+    private static final int REMOVED = -1;
+    // magic, generation time, data length, checksum, key length
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 2;
+    private static final String SEGMENT_EXTENSION = ".pack";
+    private static final int SHARD_COUNT = 16;
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final long COMPACTION_MIN_SIZE = 1024 * 1024;
+    private static final Map<String, PackThumbnailStore> instances = new HashMap<>();
+    private static ScheduledExecutorService compactor;
+
+    private final File dir;
+    private final Shard[] shards = new Shard[SHARD_COUNT];
+    // the renditions stored so far, to find the thumbnails of an image without going through the whole index
+    private final Set<String> renditions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Opens the store, rebuilding the index from the segment files.
+     */
+    public PackThumbnailStore(File dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir.toPath());
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    /**
+     * @return the store shared by all the file managers using the same directory, compacted periodically
+     */
+    public static synchronized PackThumbnailStore getInstance(File dir) throws IOException {
+        String key = dir.getAbsolutePath();
+        PackThumbnailStore store = instances.get(key);
+        if (store == null) {
+            store = new PackThumbnailStore(dir.getAbsoluteFile());
+            instances.put(key, store);
+            scheduleCompaction(store);
+        }
+        return store;
+    }
+
+    /**
+     * Stops the background compactions, waiting for the one in progress, and closes the shared stores.
+     */
+    public static synchronized void shutdown() {
+        if (compactor != null) {
+            // not interrupted, an interrupted write would close the segment being written
+            compactor.shutdown();
+            try {
+                if (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    logger.warn("The compaction of the thumbnails is still running");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            compactor = null;
+        }
+        for (PackThumbnailStore store : instances.values()) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close the thumbnails of: " + store.dir, e);
+            }
+        }
+        instances.clear();
+    }
+
+    private static synchronized void scheduleCompaction(final PackThumbnailStore store) {
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadScheduledExecutor(ThreadPools.newThreadFactory("thumbnails-compaction"));
+        }
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store.compact();
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Error compacting the thumbnails of: " + store.dir, e);
+                }
+            }
+        }, 10, 10, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public Thumbnail get(String path, String rendition, long sourceLastModified) throws IOException {
+        String key = getKey(path, rendition);
+        return getShard(key).get(key, sourceLastModified);
+    }
+
+    @Override
+    public void put(String path, String rendition, Thumbnail thumbnail) throws IOException {
+        String key = getKey(path, rendition);
+        renditions.add(rendition);
+        getShard(key).put(key, System.currentTimeMillis(), thumbnail.getData());
+    }
+
+    @Override
+    public void move(String sourcePath, String targetPath) throws IOException {
+        // the thumbnails of a folder, or the renditions of an image
+        String sourcePrefix = sourcePath.endsWith("/") ? sourcePath : getKey(sourcePath, "");
+        String targetPrefix = sourcePath.endsWith("/") ? targetPath : getKey(targetPath, "");
+        for (String key : getKeys(sourcePath)) {
+            Shard source = getShard(key);
+            Entry entry = source.getEntry(key);
+            byte[] data = entry != null ? source.read(entry) : null;
+            if (data != null) {
+                String targetKey = targetPrefix + key.substring(sourcePrefix.length());
+                getShard(targetKey).put(targetKey, entry.created, data);
+            }
+            source.remove(key);
+        }
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+        for (String key : getKeys(path)) {
+            getShard(key).remove(key);
+        }
+    }
+
+    @Override
+    public void delete(String path, String rendition) throws IOException {
+        String key = getKey(path, rendition);
+        getShard(key).remove(key);
+    }
+
+    /**
+     * Lists the shards one after the other, each one when it is reached.
+     */
+    @Override
+    public Iterator<StoredThumbnail> iterator() {
+        return new Iterator<StoredThumbnail>() {
+            private int shard;
+            private Iterator<StoredThumbnail> current = Collections.<StoredThumbnail>emptyList().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && shard < SHARD_COUNT) {
+                    current = shards[shard++].list().iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public StoredThumbnail next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Rewrites the live thumbnails of the shards whose bytes are mostly unused, and removes their previous segments.
+     *
+     * @return the number of bytes reclaimed
+     */
+    public long compact() throws IOException {
+        long reclaimed = 0;
+        for (Shard shard : shards) {
+            reclaimed += shard.compact(false);
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Rewrites the live thumbnails of all the shards holding unused bytes.
+     *
+     * @return the number of bytes reclaimed
+     */
+    public long compactAll() throws IOException {
+        long reclaimed = 0;
+        for (Shard shard : shards) {
+            reclaimed += shard.compact(true);
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Closes the segment files. The shared instances stay open.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * @return the number of thumbnails
+     */
+    public int getCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the size of the segment files, in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (Shard shard : shards) {
+            size += shard.getSize(false);
+        }
+        return size;
+    }
+
+    /**
+     * @return the size of the replaced and removed thumbnails, reclaimed by the next compaction, in bytes
+     */
+    public long getUnusedSize() {
+        long size = 0;
+        for (Shard shard : shards) {
+            size += shard.getSize(true);
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "PackThumbnailStore[dir=" + dir + ", count=" + getCount() + ", size=" + getSize() + ", unused=" + getUnusedSize() + "]";
+    }
+
+    private static String getKey(String path, String rendition) {
+        // no path contains a NUL character
+        return path + '\0' + rendition;
+    }
+
+    private Shard getShard(String key) {
+        return shards[(key.hashCode() & 0x7FFFFFFF) % SHARD_COUNT];
+    }
+
+    /**
+     * @return the keys of the thumbnails of a folder, or of the renditions of an image
+     */
+    private List<String> getKeys(String path) {
+        List<String> keys = new ArrayList<>();
+        if (path.endsWith("/")) {
+            for (Shard shard : shards) {
+                shard.addKeys(path, keys);
+            }
+        } else {
+            for (String rendition : renditions) {
+                String key = getKey(path, rendition);
+                if (getShard(key).getEntry(key) != null) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The location of a thumbnail in a segment.
+     */
+    private static class Entry {
+        final Segment segment;
+        final long offset;
+        final int length;
+        final long created;
+        final int checksum;
+        // the size of the whole record
+        final long recordSize;
+
+        Entry(Segment segment, long offset, int length, long created, int checksum, long recordSize) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.created = created;
+            this.checksum = checksum;
+            this.recordSize = recordSize;
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final int sequence;
+        final FileChannel channel;
+        long size;
+
+        Segment(File file, int sequence) throws IOException {
+            this.file = file;
+            this.sequence = sequence;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            size = channel.size();
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * A part of the index and its segments. The reads and the copies of the compaction share the lock, the writes and
+     * the index swap of the compaction hold it alone.
+     */
+    private class Shard {
+        final int id;
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        // held during a whole compaction, which takes the lock only to start and to swap the index
+        final Object compaction = new Object();
+        Map<String, Entry> entries = new HashMap<>();
+        TreeMap<Integer, Segment> segments = new TreeMap<>();
+        long size;
+        long unusedSize;
+
+        Shard(int id) throws IOException {
+            this.id = id;
+            open();
+        }
+
+        private void open() throws IOException {
+            final String prefix = String.format("%02x-", id);
+            File[] files = dir.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(prefix) && name.endsWith(SEGMENT_EXTENSION);
+                }
+            });
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    int sequence = Integer.parseInt(name.substring(prefix.length(), name.length() - SEGMENT_EXTENSION.length()));
+                    segments.put(sequence, new Segment(file, sequence));
+                } catch (NumberFormatException e) {
+                    logger.debug("Ignoring the unknown file: " + file);
+                }
+            }
+            // the records of the later segments replace the ones of the earlier segments
+            for (Segment segment : segments.values()) {
+                scan(segment);
+            }
+        }
+
+        private void scan(Segment segment) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long fileSize = segment.channel.size();
+            long position = 0;
+            while (position + HEADER_SIZE <= fileSize) {
+                header.clear();
+                readFully(segment.channel, header, position);
+                header.flip();
+                if (header.getInt() != MAGIC) {
+                    break;
+                }
+                long created = header.getLong();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                int keyLength = header.getShort() & 0xFFFF;
+                long end = position + HEADER_SIZE + keyLength + Math.max(length, 0);
+                if (length < REMOVED || end > fileSize) {
+                    break;
+                }
+                ByteBuffer keyBuffer = ByteBuffer.allocate(keyLength);
+                readFully(segment.channel, keyBuffer, position + HEADER_SIZE);
+                String key = new String(keyBuffer.array(), StandardCharsets.UTF_8);
+
+                long recordSize = end - position;
+                size += recordSize;
+                Entry previous;
+                if (length == REMOVED) {
+                    previous = entries.remove(key);
+                    unusedSize += recordSize;
+                } else {
+                    previous = entries.put(key, new Entry(segment, position + HEADER_SIZE + keyLength, length, created, checksum, recordSize));
+                    renditions.add(key.substring(key.lastIndexOf('\0') + 1));
+                }
+                if (previous != null) {
+                    unusedSize += previous.recordSize;
+                }
+                position = end;
+            }
+            if (position < fileSize) {
+                logger.warn("Cutting off the incomplete records at the end of: " + segment.file);
+                segment.channel.truncate(position);
+            }
+            segment.size = position;
+        }
+
+        Thumbnail get(String key, long sourceLastModified) throws IOException {
+            lock.readLock().lock();
+            try {
+                Entry entry = entries.get(key);
+                // a thumbnail older than its image is from a replaced image
+                if (entry == null || entry.created < sourceLastModified) {
+                    return null;
+                }
+                byte[] data = read(entry);
+                return data != null ? new Thumbnail(data) : null;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        Entry getEntry(String key) {
+            lock.readLock().lock();
+            try {
+                return entries.get(key);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return the bytes of the thumbnail, or null if they are corrupt or have been compacted meanwhile
+         */
+        byte[] read(Entry entry) throws IOException {
+            lock.readLock().lock();
+            try {
+                if (!entry.segment.channel.isOpen()) {
+                    return null;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+                readFully(entry.segment.channel, buffer, entry.offset);
+                if (checksum(buffer.array()) != entry.checksum) {
+                    logger.warn("Ignoring the corrupt thumbnail at " + entry.offset + " in: " + entry.segment.file);
+                    return null;
+                }
+                return buffer.array();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void put(String key, long created, byte[] data) throws IOException {
+            lock.writeLock().lock();
+            try {
+                Entry previous = entries.put(key, append(key, created, data));
+                if (previous != null) {
+                    unusedSize += previous.recordSize;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(String key) throws IOException {
+            lock.writeLock().lock();
+            try {
+                Entry previous = entries.remove(key);
+                if (previous != null) {
+                    // the removal is recorded, or the thumbnail would be back when the store is opened again
+                    Entry removal = append(key, System.currentTimeMillis(), null);
+                    unusedSize += previous.recordSize + removal.recordSize;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Appends a record to the last segment, or to a new one if it is full.
+         *
+         * @param data the thumbnail, null to record its removal
+         */
+        private Entry append(String key, long created, byte[] data) throws IOException {
+            Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+            if (segment == null || segment.size >= SEGMENT_SIZE) {
+                segment = newSegment(segment == null ? 1 : segment.sequence + 1);
+                segments.put(segment.sequence, segment);
+            }
+            Entry entry = write(segment, key, created, data);
+            size += entry.recordSize;
+            return entry;
+        }
+
+        /**
+         * Writes a record at the end of a segment.
+         *
+         * @param data the thumbnail, null to record its removal
+         */
+        private Entry write(Segment segment, String key, long created, byte[] data) throws IOException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (keyBytes.length > 0xFFFF) {
+                throw new IOException("Path too long for a thumbnail: " + key);
+            }
+            int length = data != null ? data.length : REMOVED;
+            int checksum = data != null ? checksum(data) : 0;
+            ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + Math.max(length, 0));
+            record.putInt(MAGIC).putLong(created).putInt(length).putInt(checksum).putShort((short) keyBytes.length).put(keyBytes);
+            if (data != null) {
+                record.put(data);
+            }
+            record.flip();
+
+            long position = segment.size;
+            while (record.hasRemaining()) {
+                segment.channel.write(record, position + record.position());
+            }
+            // an incomplete record is overwritten by the next one
+            segment.size += record.limit();
+            return new Entry(segment, position + HEADER_SIZE + keyBytes.length, length, created, checksum, record.limit());
+        }
+
+        private Segment newSegment(int sequence) throws IOException {
+            return new Segment(new File(dir, String.format("%02x-%08d", id, sequence) + SEGMENT_EXTENSION), sequence);
+        }
+
+        /**
+         * Copies the live thumbnails to a new segment while the shard keeps serving, then swaps the index and removes
+         * the previous segments.
+         *
+         * @param force true to compact whenever there are unused bytes, false only when most of the bytes are unused
+         * @return the number of bytes reclaimed
+         */
+        long compact(boolean force) throws IOException {
+            synchronized (compaction) {
+                Map<String, Entry> live;
+                Segment target;
+                lock.writeLock().lock();
+                try {
+                    if (unusedSize == 0 || (!force && (unusedSize * 2 < size || size < COMPACTION_MIN_SIZE))) {
+                        return 0;
+                    }
+                    live = new HashMap<>(entries);
+                    // the copies go to a new segment, and the thumbnails written meanwhile to the one after it: if the
+                    // compaction is interrupted, their records still win over the copies when the store is opened
+                    int sequence = segments.lastKey() + 1;
+                    target = newSegment(sequence);
+                    try {
+                        segments.put(sequence + 1, newSegment(sequence + 1));
+                    } catch (IOException | RuntimeException e) {
+                        target.delete();
+                        throw e;
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+
+                // the target segment is not in the index yet, it is written without the lock
+                Map<String, Entry> copies = new HashMap<>();
+                try {
+                    for (Map.Entry<String, Entry> entry : live.entrySet()) {
+                        byte[] data = read(entry.getValue());
+                        if (data != null) {
+                            copies.put(entry.getKey(), write(target, entry.getKey(), entry.getValue().created, data));
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    target.delete();
+                    throw e;
+                }
+
+                lock.writeLock().lock();
+                try {
+                    // the thumbnails replaced or removed meanwhile keep their new records
+                    for (Map.Entry<String, Entry> entry : live.entrySet()) {
+                        if (entries.get(entry.getKey()) == entry.getValue()) {
+                            Entry copy = copies.get(entry.getKey());
+                            if (copy != null) {
+                                entries.put(entry.getKey(), copy);
+                            } else {
+                                entries.remove(entry.getKey());
+                            }
+                        }
+                    }
+                    long reclaimed = -target.size;
+                    SortedMap<Integer, Segment> previousSegments = segments.headMap(target.sequence);
+                    for (Segment segment : previousSegments.values()) {
+                        reclaimed += segment.size;
+                        segment.delete();
+                    }
+                    previousSegments.clear();
+                    segments.put(target.sequence, target);
+
+                    size = 0;
+                    for (Segment segment : segments.values()) {
+                        size += segment.size;
+                    }
+                    unusedSize = size;
+                    for (Entry entry : entries.values()) {
+                        unusedSize -= entry.recordSize;
+                    }
+                    return reclaimed;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+
+        void close() throws IOException {
+            lock.writeLock().lock();
+            try {
+                for (Segment segment : segments.values()) {
+                    segment.channel.close();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        List<StoredThumbnail> list() {
+            lock.readLock().lock();
+            try {
+                List<StoredThumbnail> thumbnails = new ArrayList<>(entries.size());
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    String key = entry.getKey();
+                    int separator = key.lastIndexOf('\0');
+                    thumbnails.add(new StoredThumbnail(key.substring(0, separator), key.substring(separator + 1), entry.getValue().length, entry.getValue().created));
+                }
+                return thumbnails;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void addKeys(String prefix, List<String> keys) {
+            lock.readLock().lock();
+            try {
+                for (String key : entries.keySet()) {
+                    if (key.startsWith(prefix)) {
+                        keys.add(key);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        int getCount() {
+            lock.readLock().lock();
+            try {
+                return entries.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        long getSize(boolean unused) {
+            lock.readLock().lock();
+            try {
+                return unused ? unusedSize : size;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
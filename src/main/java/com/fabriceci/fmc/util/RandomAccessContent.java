@@ -0,0 +1,20 @@
+package com.fabriceci.fmc.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Content of known size which can be read from any position, as a file channel.
+ */
+public interface RandomAccessContent extends Closeable {
+
+    long size() throws IOException;
+
+    /**
+     * Reads bytes starting at the given position, without changing any current position.
+     *
+     * @return the number of bytes read, or -1 if the position is past the end
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+}
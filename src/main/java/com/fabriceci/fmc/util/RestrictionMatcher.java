@@ -0,0 +1,93 @@
+package com.fabriceci.fmc.util;
+
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches a name against a list of regexes (each one matching the whole name, as {@link String#matches}).
+ * <p>
+ * The regexes without any meta character are looked up in a hash set, the other ones are combined in a single
+ * alternation so a name is matched in one pass.
+ */
+public class RestrictionMatcher {
+
+    private static final String META_CHARACTERS = "\\^$.|?*+()[]{}";
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+    // a named group, or inline flags: "(?" not followed by a non capturing group or a lookaround
+    private static final Pattern SPECIAL_GROUP = Pattern.compile("\\(\\?(?![:=!>]|<[=!])");
+
+    private final Set<String> literals;
+    private final Pattern combined;
+    // regexes which cannot be combined: the group numbers of the back references would shift, two regexes may
+    // declare the same named group, and inline flags (as the comments mode) would apply to the next alternatives
+    private final List<Pattern> standalone;
+
+    private RestrictionMatcher(Set<String> literals, Pattern combined, List<Pattern> standalone) {
+        this.literals = literals;
+        this.combined = combined;
+        this.standalone = standalone;
+    }
+
+    /**
+     * @throws PatternSyntaxException if one of the regexes is invalid
+     */
+    public static RestrictionMatcher compile(Collection<String> regexes) {
+        Set<String> literals = new HashSet<>();
+        List<Pattern> standalone = new ArrayList<>();
+        List<Pattern> combinable = new ArrayList<>();
+        StringBuilder alternation = new StringBuilder();
+
+        for (String regex : regexes) {
+            // validate each regex on its own, so the error points to it
+            Pattern pattern = Pattern.compile(regex);
+
+            if (isLiteral(regex)) {
+                literals.add(regex);
+            } else if (BACK_REFERENCE.matcher(regex).find() || SPECIAL_GROUP.matcher(regex).find()) {
+                standalone.add(pattern);
+            } else {
+                if (alternation.length() > 0) {
+                    alternation.append('|');
+                }
+                alternation.append("(?:").append(regex).append(')');
+                combinable.add(pattern);
+            }
+        }
+
+        Pattern combined = null;
+        if (alternation.length() > 0) {
+            try {
+                combined = Pattern.compile(alternation.toString());
+            } catch (PatternSyntaxException e) {
+                // valid regexes which do not combine, matched one by one
+                standalone.addAll(combinable);
+            }
+        }
+        return new RestrictionMatcher(literals, combined, standalone);
+    }
+
+    public boolean matches(String name) {
+        if (literals.contains(name)) {
+            return true;
+        }
+        if (combined != null && combined.matcher(name).matches()) {
+            return true;
+        }
+        for (Pattern pattern : standalone) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLiteral(String regex) {
+        for (int i = 0; i < regex.length(); i++) {
+            if (META_CHARACTERS.indexOf(regex.charAt(i)) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
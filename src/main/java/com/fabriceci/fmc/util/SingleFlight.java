@@ -0,0 +1,75 @@
+package com.fabriceci.fmc.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.*;
+
+/**
+ * Runs a single call at a time per key: the callers asking for a key while its call is running wait for it and get
+ * its result, instead of running the same work again.
+ */
+public class SingleFlight<V> {
+
+    private final ConcurrentMap<String, FutureTask<V>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * @return the result of the call, run by this thread or by the one which was already running it
+     */
+    public V run(String key, Callable<V> callable) throws IOException {
+        FutureTask<V> task = new FutureTask<>(callable);
+        FutureTask<V> running = calls.putIfAbsent(key, task);
+        if (running != null) {
+            return getResult(running);
+        }
+        try {
+            task.run();
+            return getResult(task);
+        } finally {
+            calls.remove(key, task);
+        }
+    }
+
+    /**
+     * Runs the call unless the key has a call running, without waiting for it.
+     *
+     * @return the result of the call, or null if another thread is running a call for this key
+     */
+    public V runIfIdle(String key, Callable<V> callable) throws IOException {
+        FutureTask<V> task = new FutureTask<>(callable);
+        if (calls.putIfAbsent(key, task) != null) {
+            return null;
+        }
+        try {
+            task.run();
+            return getResult(task);
+        } finally {
+            calls.remove(key, task);
+        }
+    }
+
+    /**
+     * @return the number of calls running
+     */
+    public int getRunningCount() {
+        return calls.size();
+    }
+
+    private static <V> V getResult(FutureTask<V> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a concurrent call");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
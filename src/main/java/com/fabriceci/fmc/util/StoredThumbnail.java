@@ -0,0 +1,44 @@
+package com.fabriceci.fmc.util;
+
+/**
+ * A thumbnail listed from a thumbnail store.
+ */
+public class StoredThumbnail {
+
+    private final String path;
+    private final String rendition;
+    private final long size;
+    private final long lastModified;
+
+    public StoredThumbnail(String path, String rendition, long size, long lastModified) {
+        this.path = path;
+        this.rendition = rendition;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return the relative path of the image
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public String getRendition() {
+        return rendition;
+    }
+
+    /**
+     * @return the size of the thumbnail, in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the generation time of the thumbnail, in milliseconds
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,390 @@
+package com.fabriceci.fmc.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * ZIP archive of a folder whose bytes can be read from any position without building the whole archive.
+ * <p>
+ * The layout is deterministic: the files are sorted by name, stored without compression and with a fixed timestamp,
+ * so the offset of each entry is computed from the file sizes up front. Reading a range only reads the files it
+ * covers, plus the files whose CRC is not known yet (the CRC is written before the data, and in the central
+ * directory).
+ */
+public class StoredZipArchive implements RandomAccessContent {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION = 10;
+    private static final int VERSION_ZIP64 = 45;
+    // UTF-8 names
+    private static final int FLAGS = 1 << 11;
+    private static final int METHOD_STORED = 0;
+    // 1980-01-01 00:00:00
+    private static final int DOS_TIME = (1 << 21) | (1 << 16);
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int END_SIZE = 22;
+
+    private static final int CRC_CACHE_SIZE = 10000;
+    // CRC of the files by path, size and modification time, shared by the archives
+    private static final Map<String, Long> crcCache = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > CRC_CACHE_SIZE;
+        }
+    };
+
+    private final List<Entry> entries;
+    private final long[] offsets;
+    private final long centralStart;
+    private final long centralSize;
+    private final long size;
+    private final long lastModified;
+    private final String fingerprint;
+    private byte[] centralDirectory;
+
+    // the channel of the entry read last, reused by the sequential reads
+    private Entry openEntry;
+    private FileChannel openChannel;
+
+    public StoredZipArchive(File dir) throws IOException {
+        entries = new ArrayList<>();
+        listFiles(dir, dir.getName(), entries);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        offsets = new long[entries.size()];
+        long offset = 0;
+        long centralSize = 0;
+        long lastModified = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            offsets[i] = offset;
+            entry.offset = offset;
+            offset += entry.getLocalHeaderSize() + entry.size;
+            centralSize += entry.getCentralHeaderSize();
+            lastModified = Math.max(lastModified, entry.lastModified);
+            digest.update((entry.file.getPath() + '\0' + entry.size + '\0' + entry.lastModified + '\n').getBytes(StandardCharsets.UTF_8));
+        }
+        this.centralStart = offset;
+        this.centralSize = centralSize;
+        this.size = offset + centralSize + (isZip64() ? ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE : 0) + END_SIZE;
+        this.lastModified = lastModified;
+        this.fingerprint = ArchiveCache.toHex(digest.digest(), 16);
+    }
+
+    /**
+     * @return a fingerprint of the files of the archive (names, sizes and modification times)
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the last modification time of the files of the archive
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int read = 0;
+        while (dst.hasRemaining() && position < size) {
+            int count = readRegion(dst, position);
+            position += count;
+            read += count;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeEntry();
+    }
+
+    /**
+     * Reads from the region containing the position: a local header, the data of a file, or the central directory.
+     */
+    private int readRegion(ByteBuffer dst, long position) throws IOException {
+        if (position >= centralStart) {
+            if (centralDirectory == null) {
+                centralDirectory = buildCentralDirectory();
+            }
+            return put(dst, centralDirectory, position - centralStart);
+        }
+
+        int index = Arrays.binarySearch(offsets, position);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        Entry entry = entries.get(index);
+        long headerSize = entry.getLocalHeaderSize();
+        if (position < entry.offset + headerSize) {
+            return put(dst, buildLocalHeader(entry), position - entry.offset);
+        }
+        return readData(entry, dst, position - entry.offset - headerSize);
+    }
+
+    private int readData(Entry entry, ByteBuffer dst, long position) throws IOException {
+        FileChannel channel = getChannel(entry);
+        int limit = dst.limit();
+        dst.limit((int) Math.min(limit, dst.position() + entry.size - position));
+        try {
+            int read = channel.read(dst, position);
+            if (read <= 0) {
+                throw new IOException("The file has been truncated: " + entry.file);
+            }
+            return read;
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    private FileChannel getChannel(Entry entry) throws IOException {
+        if (openEntry != entry) {
+            closeEntry();
+            openChannel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+            openEntry = entry;
+            if (openChannel.size() != entry.size || entry.file.lastModified() != entry.lastModified) {
+                throw new IOException("The file has changed: " + entry.file);
+            }
+        }
+        return openChannel;
+    }
+
+    private void closeEntry() throws IOException {
+        if (openChannel != null) {
+            FileChannel channel = openChannel;
+            openChannel = null;
+            openEntry = null;
+            channel.close();
+        }
+    }
+
+    private static int put(ByteBuffer dst, byte[] bytes, long offset) {
+        int count = (int) Math.min(dst.remaining(), bytes.length - offset);
+        dst.put(bytes, (int) offset, count);
+        return count;
+    }
+
+    private byte[] buildLocalHeader(Entry entry) throws IOException {
+        boolean zip64 = entry.size >= ZIP64_MAGIC;
+        ByteBuffer header = newBuffer(entry.getLocalHeaderSize());
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+        header.putShort((short) FLAGS);
+        header.putShort((short) METHOD_STORED);
+        header.putInt(DOS_TIME);
+        header.putInt((int) getCrc(entry));
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : entry.size));
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : entry.size));
+        header.putShort((short) entry.name.length);
+        header.putShort((short) (zip64 ? 20 : 0));
+        header.put(entry.name);
+        if (zip64) {
+            header.putShort((short) ZIP64_EXTRA_ID);
+            header.putShort((short) 16);
+            header.putLong(entry.size);
+            header.putLong(entry.size);
+        }
+        return header.array();
+    }
+
+    private byte[] buildCentralDirectory() throws IOException {
+        boolean zip64 = isZip64();
+        ByteBuffer central = newBuffer(size - centralStart);
+
+        for (Entry entry : entries) {
+            boolean sizeOver = entry.size >= ZIP64_MAGIC;
+            boolean offsetOver = entry.offset >= ZIP64_MAGIC;
+            int extraLength = entry.getCentralExtraLength();
+
+            central.putInt(CENTRAL_HEADER_SIGNATURE);
+            central.putShort((short) (extraLength > 0 ? VERSION_ZIP64 : VERSION));
+            central.putShort((short) (extraLength > 0 ? VERSION_ZIP64 : VERSION));
+            central.putShort((short) FLAGS);
+            central.putShort((short) METHOD_STORED);
+            central.putInt(DOS_TIME);
+            central.putInt((int) getCrc(entry));
+            central.putInt((int) (sizeOver ? ZIP64_MAGIC : entry.size));
+            central.putInt((int) (sizeOver ? ZIP64_MAGIC : entry.size));
+            central.putShort((short) entry.name.length);
+            central.putShort((short) extraLength);
+            // comment length, disk number, internal and external attributes
+            central.putShort((short) 0);
+            central.putShort((short) 0);
+            central.putShort((short) 0);
+            central.putInt(0);
+            central.putInt((int) (offsetOver ? ZIP64_MAGIC : entry.offset));
+            central.put(entry.name);
+            if (extraLength > 0) {
+                central.putShort((short) ZIP64_EXTRA_ID);
+                central.putShort((short) (extraLength - 4));
+                if (sizeOver) {
+                    central.putLong(entry.size);
+                    central.putLong(entry.size);
+                }
+                if (offsetOver) {
+                    central.putLong(entry.offset);
+                }
+            }
+        }
+
+        if (zip64) {
+            long zip64EndStart = centralStart + centralSize;
+            central.putInt(ZIP64_END_SIGNATURE);
+            central.putLong(ZIP64_END_SIZE - 12);
+            central.putShort((short) VERSION_ZIP64);
+            central.putShort((short) VERSION_ZIP64);
+            central.putInt(0);
+            central.putInt(0);
+            central.putLong(entries.size());
+            central.putLong(entries.size());
+            central.putLong(centralSize);
+            central.putLong(centralStart);
+
+            central.putInt(ZIP64_LOCATOR_SIGNATURE);
+            central.putInt(0);
+            central.putLong(zip64EndStart);
+            central.putInt(1);
+        }
+
+        int count = zip64 ? ZIP64_MAGIC_COUNT : entries.size();
+        central.putInt(END_SIGNATURE);
+        central.putShort((short) 0);
+        central.putShort((short) 0);
+        central.putShort((short) count);
+        central.putShort((short) count);
+        central.putInt((int) (zip64 ? ZIP64_MAGIC : centralSize));
+        central.putInt((int) (zip64 ? ZIP64_MAGIC : centralStart));
+        central.putShort((short) 0);
+        return central.array();
+    }
+
+    private boolean isZip64() {
+        return entries.size() >= ZIP64_MAGIC_COUNT || centralStart >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC;
+    }
+
+    private long getCrc(Entry entry) throws IOException {
+        if (entry.crc >= 0) {
+            return entry.crc;
+        }
+        String key = entry.file.getAbsolutePath() + '\0' + entry.size + '\0' + entry.lastModified;
+        Long crc;
+        synchronized (crcCache) {
+            crc = crcCache.get(key);
+        }
+        if (crc == null) {
+            crc = computeCrc(entry);
+            synchronized (crcCache) {
+                crcCache.put(key, crc);
+            }
+        }
+        entry.crc = crc;
+        return crc;
+    }
+
+    private long computeCrc(Entry entry) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[65536];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        FileChannel channel = getChannel(entry);
+        long position = 0;
+        while (position < entry.size) {
+            byteBuffer.clear();
+            int read = channel.read(byteBuffer, position);
+            if (read < 0) {
+                throw new IOException("The file has been truncated: " + entry.file);
+            }
+            crc.update(buffer, 0, read);
+            position += read;
+        }
+        return crc.getValue();
+    }
+
+    private static ByteBuffer newBuffer(long size) {
+        return ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void listFiles(File fileToZip, String fileName, List<Entry> entries) throws IOException {
+        if (fileToZip.isHidden()) {
+            return;
+        }
+        if (fileToZip.isDirectory()) {
+            File[] children = fileToZip.listFiles();
+            if (children == null) {
+                throw new IOException("Unable to list the folder: " + fileToZip);
+            }
+            // the order of the entries must not depend on the file system
+            Arrays.sort(children);
+            for (File childFile : children) {
+                listFiles(childFile, fileName + "/" + childFile.getName(), entries);
+            }
+            return;
+        }
+        entries.add(new Entry(fileToZip, fileName));
+    }
+
+    private static class Entry {
+        final File file;
+        final byte[] name;
+        final long size;
+        final long lastModified;
+        long offset;
+        long crc = -1;
+
+        Entry(File file, String name) {
+            this.file = file;
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        int getLocalHeaderSize() {
+            return LOCAL_HEADER_SIZE + name.length + (size >= ZIP64_MAGIC ? 20 : 0);
+        }
+
+        int getCentralExtraLength() {
+            int length = (size >= ZIP64_MAGIC ? 16 : 0) + (offset >= ZIP64_MAGIC ? 8 : 0);
+            return length > 0 ? length + 4 : 0;
+        }
+
+        int getCentralHeaderSize() {
+            return CENTRAL_HEADER_SIZE + name.length + getCentralExtraLength();
+        }
+    }
+}
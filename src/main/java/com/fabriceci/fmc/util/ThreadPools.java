@@ -0,0 +1,77 @@
+package com.fabriceci.fmc.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ThreadPools {
+
+    // pools shared by the file managers, by name, number of threads and queue size
+    private static final Map<String, ThreadPoolExecutor> sharedPools = new HashMap<>();
+
+    /**
+     * @return a factory of daemon threads named "fmc-{name}-{number}", so the pools never prevent the container from
+     * stopping
+     */
+    public static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "fmc-" + name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Creates a pool with a fixed number of threads and a bounded queue. When the queue is full, the task is run by
+     * the submitting thread.
+     */
+    public static ThreadPoolExecutor newBoundedPool(String name, int threads, int queueSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize), newThreadFactory(name), new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return the pool created by {@link #newBoundedPool} with these settings, shared by all the callers which ask for
+     * the same ones, so file managers configured differently each get a pool of their size instead of resizing one
+     */
+    public static synchronized ThreadPoolExecutor getSharedPool(String name, int threads, int queueSize) {
+        String key = name + "-" + threads + "-" + queueSize;
+        ThreadPoolExecutor executor = sharedPools.get(key);
+        if (executor == null) {
+            executor = newBoundedPool(name + "-" + threads, threads, queueSize);
+            sharedPools.put(key, executor);
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the shared pools once their tasks are done, the next callers get new ones.
+     */
+    public static synchronized void shutdown() {
+        for (ThreadPoolExecutor executor : sharedPools.values()) {
+            executor.shutdown();
+        }
+        sharedPools.clear();
+    }
+
+    /**
+     * Changes the number of threads of a pool created by {@link #newBoundedPool}.
+     */
+    public static void resize(ThreadPoolExecutor executor, int threads) {
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else if (threads < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.fabriceci.fmc.util;
+
+/**
+ * The encoded bytes of a thumbnail, whose format is read from its first bytes.
+ */
+public class Thumbnail {
+
+    private final byte[] data;
+
+    public Thumbnail(byte[] data) {
+        this.data = data;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the mime type of the thumbnail, or null if the format is not recognized
+     */
+    public String getMimeType() {
+        if (startsWith(0, 0xFF, 0xD8)) {
+            return "image/jpeg";
+        } else if (startsWith(0, 0x89, 'P', 'N', 'G')) {
+            return "image/png";
+        } else if (startsWith(0, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        } else if (startsWith(0, 'R', 'I', 'F', 'F') && startsWith(8, 'W', 'E', 'B', 'P')) {
+            return "image/webp";
+        } else if (startsWith(0, 'B', 'M')) {
+            return "image/bmp";
+        }
+        return null;
+    }
+
+    private boolean startsWith(int offset, int... bytes) {
+        if (data.length < offset + bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if ((data[offset + i] & 0xFF) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,350 @@
+package com.fabriceci.fmc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thumbnail store keeping the thumbnails of another store within a disk budget.
+ * <p>
+ * The accesses to the thumbnails are tracked in memory. Once the thumbnails exceed the budget, the least recently used
+ * ones, or the least frequently used ones, are removed. A sweep goes through the stored thumbnails a batch at a time:
+ * it removes the thumbnails of the images deleted or modified outside of the file manager, and learns the size of the
+ * thumbnails stored before the start. The thumbnails not seen by a whole sweep are forgotten.
+ */
+public class ThumbnailCache implements ThumbnailStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailCache.class);
+
+    private static final ConcurrentMap<String, ThumbnailCache> instances = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService sweeper;
+
+    /**
+     * Tells whether a stored thumbnail is still the one of its image.
+     */
+    public interface Validator {
+        boolean isValid(StoredThumbnail thumbnail);
+    }
+
+    private final ThumbnailStore store;
+    private final ConcurrentMap<String, Usage> usages = new ConcurrentHashMap<>();
+    // the renditions seen so far, to find the thumbnails of an image
+    private final Set<String> renditions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile long budget;
+    private volatile boolean frequencyBased;
+    private volatile int batchSize;
+    private volatile int pass;
+    private Iterator<StoredThumbnail> sweep;
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong invalidated = new AtomicLong();
+
+    /**
+     * @param budget         the maximum size of the thumbnails in bytes, 0 for no limit
+     * @param frequencyBased true to remove the least frequently used thumbnails first, false for the least recently
+     *                       used ones
+     */
+    public ThumbnailCache(ThumbnailStore store, long budget, boolean frequencyBased, int batchSize) {
+        this.store = store;
+        setLimits(budget, frequencyBased, batchSize);
+    }
+
+    /**
+     * @param key       identifies the store, with its type and location
+     * @param validator used by the periodic sweeps of the thumbnails
+     * @return the cache shared by all the file managers using the same store
+     */
+    public static ThumbnailCache getInstance(String key, ThumbnailStore store, long budget, boolean frequencyBased, int batchSize, Validator validator) {
+        ThumbnailCache cache = instances.get(key);
+        if (cache == null) {
+            ThumbnailCache newCache = new ThumbnailCache(store, budget, frequencyBased, batchSize);
+            cache = instances.putIfAbsent(key, newCache);
+            if (cache == null) {
+                cache = newCache;
+                scheduleSweep(cache, validator);
+            }
+        }
+        cache.setLimits(budget, frequencyBased, batchSize);
+        return cache;
+    }
+
+    /**
+     * Stops the background sweeps, and forgets the shared caches.
+     */
+    public static synchronized void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+        instances.clear();
+    }
+
+    private static synchronized void scheduleSweep(final ThumbnailCache cache, final Validator validator) {
+        if (sweeper == null) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(ThreadPools.newThreadFactory("thumbnails-sweeper"));
+        }
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.sweep(cache.batchSize, validator);
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Error sweeping the thumbnails", e);
+                }
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void setLimits(long budget, boolean frequencyBased, int batchSize) {
+        this.budget = budget;
+        this.frequencyBased = frequencyBased;
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    @Override
+    public Thumbnail get(String path, String rendition, long sourceLastModified) throws IOException {
+        Thumbnail thumbnail = store.get(path, rendition, sourceLastModified);
+        if (thumbnail != null) {
+            String key = getKey(path, rendition);
+            Usage usage = usages.get(key);
+            if (usage == null) {
+                // stored before the start, not swept yet
+                Usage newUsage = new Usage(thumbnail.getData().length, System.currentTimeMillis(), pass);
+                usage = usages.putIfAbsent(key, newUsage);
+                usage = usage != null ? usage : newUsage;
+            }
+            usage.access();
+        }
+        return thumbnail;
+    }
+
+    @Override
+    public void put(String path, String rendition, Thumbnail thumbnail) throws IOException {
+        store.put(path, rendition, thumbnail);
+        renditions.add(rendition);
+        usages.put(getKey(path, rendition), new Usage(thumbnail.getData().length, System.currentTimeMillis(), pass));
+    }
+
+    @Override
+    public void move(String sourcePath, String targetPath) throws IOException {
+        store.move(sourcePath, targetPath);
+        for (String key : getKeys(sourcePath)) {
+            Usage usage = usages.remove(key);
+            if (usage != null) {
+                usages.put(targetPath + key.substring(sourcePath.length()), usage);
+            }
+        }
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+        store.delete(path);
+        for (String key : getKeys(path)) {
+            usages.remove(key);
+        }
+    }
+
+    @Override
+    public void delete(String path, String rendition) throws IOException {
+        store.delete(path, rendition);
+        usages.remove(getKey(path, rendition));
+    }
+
+    @Override
+    public Iterator<StoredThumbnail> iterator() {
+        return store.iterator();
+    }
+
+    /**
+     * Checks the next thumbnails of the store, then removes the least used ones if the budget is exceeded. A sweep
+     * starts again from the beginning of the store once it has reached its end.
+     *
+     * @param count the number of thumbnails to check
+     * @return the number of thumbnails checked
+     */
+    public synchronized int sweep(int count, Validator validator) throws IOException {
+        if (sweep == null) {
+            sweep = store.iterator();
+            pass++;
+        }
+        int checked = 0;
+        while (checked < count && sweep.hasNext()) {
+            StoredThumbnail thumbnail = sweep.next();
+            checked++;
+            String key = getKey(thumbnail.getPath(), thumbnail.getRendition());
+            if (!validator.isValid(thumbnail)) {
+                store.delete(thumbnail.getPath(), thumbnail.getRendition());
+                usages.remove(key);
+                invalidated.incrementAndGet();
+                continue;
+            }
+            renditions.add(thumbnail.getRendition());
+            Usage usage = usages.get(key);
+            if (usage == null) {
+                // stored before the start: used when it was generated, as far as we know
+                usages.putIfAbsent(key, new Usage(thumbnail.getSize(), thumbnail.getLastModified(), pass));
+            } else {
+                usage.pass = pass;
+            }
+        }
+
+        if (!sweep.hasNext()) {
+            sweep = null;
+            for (Iterator<Usage> iterator = usages.values().iterator(); iterator.hasNext(); ) {
+                Usage usage = iterator.next();
+                if (usage.pass < pass) {
+                    // removed from the store meanwhile
+                    iterator.remove();
+                } else {
+                    // the old accesses count less and less
+                    usage.age();
+                }
+            }
+        }
+
+        evict();
+        return checked;
+    }
+
+    /**
+     * Removes the least used thumbnails until they are a tenth below the budget.
+     *
+     * @return the number of thumbnails removed
+     */
+    public int evict() throws IOException {
+        long budget = this.budget;
+        long size = getSize();
+        if (budget <= 0 || size <= budget) {
+            return 0;
+        }
+
+        List<Map.Entry<String, Usage>> candidates = new ArrayList<>(usages.entrySet());
+        final boolean frequencyBased = this.frequencyBased;
+        Collections.sort(candidates, new Comparator<Map.Entry<String, Usage>>() {
+            @Override
+            public int compare(Map.Entry<String, Usage> entry1, Map.Entry<String, Usage> entry2) {
+                Usage usage1 = entry1.getValue();
+                Usage usage2 = entry2.getValue();
+                if (frequencyBased) {
+                    int result = Integer.compare(usage1.accesses.get(), usage2.accesses.get());
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return Long.compare(usage1.lastAccess, usage2.lastAccess);
+            }
+        });
+
+        int removed = 0;
+        long target = budget - budget / 10;
+        for (Map.Entry<String, Usage> candidate : candidates) {
+            if (size <= target) {
+                break;
+            }
+            String key = candidate.getKey();
+            int separator = key.lastIndexOf('\0');
+            if (usages.remove(key, candidate.getValue())) {
+                store.delete(key.substring(0, separator), key.substring(separator + 1));
+                size -= candidate.getValue().size;
+                removed++;
+            }
+        }
+        evicted.addAndGet(removed);
+        return removed;
+    }
+
+    /**
+     * @return the size of the known thumbnails, in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (Usage usage : usages.values()) {
+            size += usage.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of known thumbnails
+     */
+    public int getCount() {
+        return usages.size();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the number of thumbnails removed to stay within the budget
+     */
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    /**
+     * @return the number of thumbnails removed by the sweeps, because their image was deleted or modified
+     */
+    public long getInvalidatedCount() {
+        return invalidated.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ThumbnailCache[count=" + getCount() + ", size=" + getSize() + ", budget=" + budget + ", evicted="
+                + getEvictedCount() + ", invalidated=" + getInvalidatedCount() + "]";
+    }
+
+    private static String getKey(String path, String rendition) {
+        return path + '\0' + rendition;
+    }
+
+    /**
+     * @return the keys of the thumbnails of a folder, or of the renditions of an image
+     */
+    private List<String> getKeys(String path) {
+        List<String> keys = new ArrayList<>();
+        if (path.endsWith("/")) {
+            for (String key : usages.keySet()) {
+                if (key.startsWith(path)) {
+                    keys.add(key);
+                }
+            }
+        } else {
+            for (String rendition : renditions) {
+                keys.add(getKey(path, rendition));
+            }
+        }
+        return keys;
+    }
+
+    private static class Usage {
+        final long size;
+        final AtomicInteger accesses = new AtomicInteger();
+        volatile long lastAccess;
+        // the last sweep which has seen the thumbnail
+        volatile int pass;
+
+        Usage(long size, long lastAccess, int pass) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.pass = pass;
+        }
+
+        void access() {
+            accesses.incrementAndGet();
+            lastAccess = System.currentTimeMillis();
+        }
+
+        void age() {
+            int count;
+            do {
+                count = accesses.get();
+            } while (!accesses.compareAndSet(count, count / 2));
+        }
+    }
+}
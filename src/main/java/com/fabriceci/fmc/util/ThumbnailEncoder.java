@@ -0,0 +1,131 @@
+package com.fabriceci.fmc.util;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Encodes the thumbnails in the format giving the smallest file for their content.
+ * <p>
+ * The opaque images are encoded as progressive JPEG and as PNG, which is smaller for screenshots and drawings with few
+ * colors. The images with transparency are encoded as PNG. WebP is tried too when an ImageIO writer is installed.
+ */
+public class ThumbnailEncoder {
+
+    private final float jpegQuality;
+
+    /**
+     * @param jpegQuality the JPEG compression quality, between 0 and 1
+     */
+    public ThumbnailEncoder(float jpegQuality) {
+        this.jpegQuality = jpegQuality;
+    }
+
+    public Thumbnail encode(BufferedImage image) throws IOException {
+        byte[] best = null;
+
+        if (isOpaque(image)) {
+            best = smallest(best, writeJpeg(toRgb(image)));
+        }
+        best = smallest(best, write(image, "png"));
+        if (ImageIO.getImageWritersByMIMEType("image/webp").hasNext()) {
+            best = smallest(best, write(image, "webp"));
+        }
+
+        if (best == null) {
+            throw new IOException("No image writer for the thumbnail");
+        }
+        return new Thumbnail(best);
+    }
+
+    private static byte[] smallest(byte[] best, byte[] candidate) {
+        if (candidate == null) {
+            return best;
+        }
+        return best == null || candidate.length < best.length ? candidate : best;
+    }
+
+    private byte[] writeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = getWriter("jpeg");
+        if (writer == null) {
+            return null;
+        }
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(jpegQuality);
+        // the thumbnails are displayed progressively in the slow listings
+        param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        return write(image, writer, param);
+    }
+
+    /**
+     * @return the encoded image, or null if there is no writer for the format
+     */
+    private static byte[] write(BufferedImage image, String format) throws IOException {
+        ImageWriter writer = getWriter(format);
+        if (writer == null) {
+            return null;
+        }
+        return write(image, writer, writer.getDefaultWriteParam());
+    }
+
+    /**
+     * Encodes the image with the writer, and disposes of the writer.
+     *
+     * @return the encoded image, or null if the writer does not support the image
+     */
+    private static byte[] write(BufferedImage image, ImageWriter writer, ImageWriteParam param) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } catch (IOException | RuntimeException e) {
+            // a writer which does not support this kind of image
+            return null;
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static ImageWriter getWriter(String format) {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        return writers.hasNext() ? writers.next() : null;
+    }
+
+    private static boolean isOpaque(BufferedImage image) {
+        if (image.getTransparency() == Transparency.OPAQUE) {
+            return true;
+        }
+        // an alpha channel which is not used, as in many PNG files
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                if ((image.getRGB(x, y) >>> 24) != 0xFF) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static BufferedImage toRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            return image;
+        }
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        return rgb;
+    }
+}
@@ -0,0 +1,162 @@
+package com.fabriceci.fmc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background queue of the thumbnail generations, with a bounded pool and a bounded queue.
+ * <p>
+ * A thumbnail already queued or being generated is not queued again. When the queue is full the job is dropped, the
+ * thumbnail is then generated on its first request as before.
+ */
+public class ThumbnailQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailQueue.class);
+
+    private static ThumbnailQueue instance;
+
+    private final ThreadPoolExecutor executor;
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+
+    public ThumbnailQueue(int threads, int queueSize) {
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize), ThreadPools.newThreadFactory("thumbnails"), new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the queue shared by the file managers, or null if the background generations are disabled
+     */
+    public static synchronized ThumbnailQueue getInstance(int threads, int queueSize) {
+        if (threads < 1) {
+            return null;
+        }
+        if (instance == null) {
+            instance = new ThumbnailQueue(threads, Math.max(queueSize, 1));
+        } else if (threads > instance.getThreadCount()) {
+            // a single queue keeps a thumbnail from being generated twice, it grows to the largest setting only, so
+            // the file managers configured differently do not resize it back and forth
+            instance.resize(threads);
+        }
+        return instance;
+    }
+
+    /**
+     * @return the queue shared by the file managers, or null if no thumbnail has been queued yet
+     */
+    public static synchronized ThumbnailQueue getInstance() {
+        return instance;
+    }
+
+    /**
+     * Drops the queued jobs of the shared queue, and interrupts the running ones.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.executor.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * @param key identifies the thumbnail, a job is not queued while another one with the same key is pending
+     * @return true if the job is queued
+     */
+    public boolean submit(final String key, final Runnable job) {
+        if (!pending.add(key)) {
+            deduplicated.incrementAndGet();
+            return false;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.run();
+                        completed.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        logger.debug("Error generating the thumbnail: " + key, e);
+                    } finally {
+                        pending.remove(key);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            dropped.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Changes the number of threads. The queue size is the one given at creation.
+     */
+    public void resize(int threads) {
+        ThreadPools.resize(executor, threads);
+    }
+
+    /**
+     * @return the number of jobs waiting for a thread
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of jobs waiting or running
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of threads running a job
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getThreadCount() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of jobs not queued because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of jobs not queued because the same thumbnail was pending
+     */
+    public long getDeduplicatedCount() {
+        return deduplicated.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ThumbnailQueue[threads=" + getThreadCount() + ", active=" + getActiveCount() + ", queued=" + getQueueSize()
+                + ", completed=" + getCompletedCount() + ", failed=" + getFailedCount() + ", dropped=" + getDroppedCount()
+                + ", deduplicated=" + getDeduplicatedCount() + "]";
+    }
+}
@@ -0,0 +1,45 @@
+package com.fabriceci.fmc.util;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Storage of the thumbnails, keyed by the relative path of the image and the name of the rendition.
+ * <p>
+ * The default rendition has an empty name, the other ones are named after their size. The operations on a folder
+ * (path ending with a slash) apply to the thumbnails of all the images it contains.
+ */
+public interface ThumbnailStore {
+
+    /**
+     * @param sourceLastModified the last modification time of the image, in milliseconds
+     * @return the rendition, or null if there is none or it is older than the image
+     */
+    Thumbnail get(String path, String rendition, long sourceLastModified) throws IOException;
+
+    /**
+     * Stores a rendition, replacing the previous one. A rendition being stored is never read partially.
+     */
+    void put(String path, String rendition, Thumbnail thumbnail) throws IOException;
+
+    /**
+     * Moves the renditions of an image, or of the images of a folder.
+     */
+    void move(String sourcePath, String targetPath) throws IOException;
+
+    /**
+     * Removes the renditions of an image, or of the images of a folder.
+     */
+    void delete(String path) throws IOException;
+
+    /**
+     * Removes a rendition of an image.
+     */
+    void delete(String path, String rendition) throws IOException;
+
+    /**
+     * @return the stored thumbnails, listed as the iteration goes so that a partial iteration reads a part of the store
+     * only. The thumbnails stored or removed during the iteration may be missed.
+     */
+    Iterator<StoredThumbnail> iterator();
+}
@@ -0,0 +1,269 @@
+package com.fabriceci.fmc.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Writes a ZIP archive to a stream, with entries whose data is deflated by the caller. The entries sizes and CRC are
+ * written after their data (data descriptor), so the data can be written as soon as it is compressed.
+ * <p>
+ * The ZIP64 extensions are used for the entries and archives larger than 4 GB.
+ */
+class ZipStreamWriter {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    // data descriptor, UTF-8 names
+    private static final int FLAGS = 1 << 3 | 1 << 11;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    // keeps a margin for the deflate overhead of the incompressible data (5 bytes per 64 KB block)
+    private static final long ZIP64_THRESHOLD = ZIP64_MAGIC - ZIP64_MAGIC / 1000;
+
+    private final OutputStream out;
+    private final List<Entry> entries = new ArrayList<>();
+    private final byte[] header = new byte[64];
+    private long written;
+    private Entry entry;
+
+    ZipStreamWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Starts a deflated entry.
+     *
+     * @param sizeHint the expected uncompressed size, to decide whether the entry needs the ZIP64 extensions
+     */
+    void putNextEntry(String name, long time, long sizeHint) throws IOException {
+        if (entry != null) {
+            throw new IllegalStateException("The previous entry is not closed");
+        }
+        entry = new Entry(name.getBytes(StandardCharsets.UTF_8), toDosTime(time), written, sizeHint >= ZIP64_THRESHOLD);
+
+        int pos = 0;
+        pos = putInt(pos, LOCAL_HEADER_SIGNATURE);
+        pos = putShort(pos, entry.zip64 ? VERSION_ZIP64 : VERSION);
+        pos = putShort(pos, FLAGS);
+        pos = putShort(pos, METHOD_DEFLATED);
+        pos = putInt(pos, entry.dosTime);
+        // crc and sizes are in the data descriptor
+        pos = putInt(pos, 0);
+        pos = putInt(pos, entry.zip64 ? (int) ZIP64_MAGIC : 0);
+        pos = putInt(pos, entry.zip64 ? (int) ZIP64_MAGIC : 0);
+        pos = putShort(pos, entry.name.length);
+        pos = putShort(pos, entry.zip64 ? 20 : 0);
+        writeHeader(pos);
+        writeBytes(entry.name, 0, entry.name.length);
+        if (entry.zip64) {
+            pos = putShort(0, ZIP64_EXTRA_ID);
+            pos = putShort(pos, 16);
+            pos = putLong(pos, 0);
+            pos = putLong(pos, 0);
+            writeHeader(pos);
+        }
+    }
+
+    /**
+     * Writes deflated data of the current entry.
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        writeBytes(b, off, len);
+        entry.compressedSize += len;
+    }
+
+    /**
+     * Ends the current entry.
+     *
+     * @param crc the CRC-32 of the uncompressed data
+     * @param size the uncompressed size
+     */
+    void closeEntry(long crc, long size) throws IOException {
+        entry.crc = crc;
+        entry.size = size;
+        if (!entry.zip64 && (size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC)) {
+            throw new IOException("The entry " + new String(entry.name, StandardCharsets.UTF_8) + " has grown over 4 GB");
+        }
+
+        int pos = 0;
+        pos = putInt(pos, DATA_DESCRIPTOR_SIGNATURE);
+        pos = putInt(pos, (int) crc);
+        if (entry.zip64) {
+            pos = putLong(pos, entry.compressedSize);
+            pos = putLong(pos, size);
+        } else {
+            pos = putInt(pos, (int) entry.compressedSize);
+            pos = putInt(pos, (int) size);
+        }
+        writeHeader(pos);
+
+        entries.add(entry);
+        entry = null;
+    }
+
+    /**
+     * Writes the central directory, without closing the output.
+     */
+    void finish() throws IOException {
+        if (entry != null) {
+            throw new IllegalStateException("The last entry is not closed");
+        }
+        long centralStart = written;
+        for (Entry e : entries) {
+            writeCentralHeader(e);
+        }
+        long centralSize = written - centralStart;
+
+        boolean zip64 = entries.size() >= ZIP64_MAGIC_COUNT || centralStart >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndStart = written;
+            int pos = 0;
+            pos = putInt(pos, ZIP64_END_SIGNATURE);
+            pos = putLong(pos, 44);
+            pos = putShort(pos, VERSION_ZIP64);
+            pos = putShort(pos, VERSION_ZIP64);
+            pos = putInt(pos, 0);
+            pos = putInt(pos, 0);
+            pos = putLong(pos, entries.size());
+            pos = putLong(pos, entries.size());
+            pos = putLong(pos, centralSize);
+            pos = putLong(pos, centralStart);
+            writeHeader(pos);
+
+            pos = 0;
+            pos = putInt(pos, ZIP64_LOCATOR_SIGNATURE);
+            pos = putInt(pos, 0);
+            pos = putLong(pos, zip64EndStart);
+            pos = putInt(pos, 1);
+            writeHeader(pos);
+        }
+
+        int count = zip64 ? ZIP64_MAGIC_COUNT : entries.size();
+        int pos = 0;
+        pos = putInt(pos, END_SIGNATURE);
+        pos = putShort(pos, 0);
+        pos = putShort(pos, 0);
+        pos = putShort(pos, count);
+        pos = putShort(pos, count);
+        pos = putInt(pos, (int) (zip64 ? ZIP64_MAGIC : centralSize));
+        pos = putInt(pos, (int) (zip64 ? ZIP64_MAGIC : centralStart));
+        pos = putShort(pos, 0);
+        writeHeader(pos);
+        out.flush();
+    }
+
+    private void writeCentralHeader(Entry e) throws IOException {
+        boolean sizeOver = e.size >= ZIP64_MAGIC;
+        boolean compressedSizeOver = e.compressedSize >= ZIP64_MAGIC;
+        boolean offsetOver = e.offset >= ZIP64_MAGIC;
+        int extraLength = (sizeOver ? 8 : 0) + (compressedSizeOver ? 8 : 0) + (offsetOver ? 8 : 0);
+        boolean zip64 = e.zip64 || extraLength > 0;
+
+        int pos = 0;
+        pos = putInt(pos, CENTRAL_HEADER_SIGNATURE);
+        pos = putShort(pos, zip64 ? VERSION_ZIP64 : VERSION);
+        pos = putShort(pos, zip64 ? VERSION_ZIP64 : VERSION);
+        pos = putShort(pos, FLAGS);
+        pos = putShort(pos, METHOD_DEFLATED);
+        pos = putInt(pos, e.dosTime);
+        pos = putInt(pos, (int) e.crc);
+        pos = putInt(pos, (int) (compressedSizeOver ? ZIP64_MAGIC : e.compressedSize));
+        pos = putInt(pos, (int) (sizeOver ? ZIP64_MAGIC : e.size));
+        pos = putShort(pos, e.name.length);
+        pos = putShort(pos, extraLength > 0 ? extraLength + 4 : 0);
+        // comment length, disk number, internal and external attributes
+        pos = putShort(pos, 0);
+        pos = putShort(pos, 0);
+        pos = putShort(pos, 0);
+        pos = putInt(pos, 0);
+        pos = putInt(pos, (int) (offsetOver ? ZIP64_MAGIC : e.offset));
+        writeHeader(pos);
+        writeBytes(e.name, 0, e.name.length);
+
+        if (extraLength > 0) {
+            pos = putShort(0, ZIP64_EXTRA_ID);
+            pos = putShort(pos, extraLength);
+            if (sizeOver) {
+                pos = putLong(pos, e.size);
+            }
+            if (compressedSizeOver) {
+                pos = putLong(pos, e.compressedSize);
+            }
+            if (offsetOver) {
+                pos = putLong(pos, e.offset);
+            }
+            writeHeader(pos);
+        }
+    }
+
+    private void writeHeader(int length) throws IOException {
+        writeBytes(header, 0, length);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private int putShort(int pos, int value) {
+        header[pos] = (byte) value;
+        header[pos + 1] = (byte) (value >>> 8);
+        return pos + 2;
+    }
+
+    private int putInt(int pos, int value) {
+        pos = putShort(pos, value);
+        return putShort(pos, value >>> 16);
+    }
+
+    private int putLong(int pos, long value) {
+        pos = putInt(pos, (int) value);
+        return putInt(pos, (int) (value >>> 32));
+    }
+
+    static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            // 1980-01-01 00:00:00, the earliest date of the format
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static class Entry {
+        final byte[] name;
+        final int dosTime;
+        final long offset;
+        final boolean zip64;
+        long compressedSize;
+        long size;
+        long crc;
+
+        Entry(byte[] name, int dosTime, long offset, boolean zip64) {
+            this.name = name;
+            this.dosTime = dosTime;
+            this.offset = offset;
+            this.zip64 = zip64;
+        }
+    }
+}
@@ -2,55 +2,260 @@ package com.fabriceci.fmc.util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public class ZipUtils {
 
-    private static final int BUFFER_SIZE = 4096;
+    // the large files are split in blocks compressed independently
+    private static final int BLOCK_SIZE = 1024 * 1024;
 
+    /**
+     * @deprecated the whole archive is held in memory, use {@link #zipFolder(File, OutputStream)}
+     */
+    @Deprecated
     static public byte[] zipFolder(File dir) throws IOException {
-
-        ZipOutputStream zout = null;
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        zipFolder(dir, bout);
+        return bout.toByteArray();
+    }
+
+    /**
+     * Writes the archive of the folder to the output as it is built, compressing in the calling thread. The output is
+     * not closed.
+     */
+    static public void zipFolder(File dir, OutputStream out) throws IOException {
+        zipFolder(dir, out, Collections.<String>emptySet(), null, 1);
+    }
+
+    /**
+     * Writes the archive of the folder to the output as it is built. The files are read and compressed by blocks of
+     * 1 MB on the executor, at most {@code window} blocks ahead of the output, and written in order. The output is
+     * not closed.
+     *
+     * @param storedExtensions the extensions (lower case) of the files already compressed, written without compression
+     * @param executor the executor compressing the blocks, or null to compress them in the calling thread
+     */
+    static public void zipFolder(File dir, OutputStream out, Set<String> storedExtensions, ExecutorService executor, int window) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        listFiles(dir, dir.getName(), entries);
+
+        ZipStreamWriter writer = new ZipStreamWriter(out);
+        Deque<Future<Block>> pending = new ArrayDeque<>();
+        CRC32 crc = new CRC32();
 
         try {
-            zout = new ZipOutputStream(bout);
-            zipFile(dir, dir.getName(), zout);
-            zout.close();
-            return bout.toByteArray();
-        } finally {
-            if(zout != null){
-                zout.flush();
-                zout.close();
+            for (Entry entry : entries) {
+                boolean stored = storedExtensions.contains(FileUtils.getExtension(entry.file.getName()));
+                long blocks = Math.max(1, (entry.size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+                for (long i = 0; i < blocks; i++) {
+                    BlockTask task = new BlockTask(entry, i * BLOCK_SIZE, i == 0, i == blocks - 1, stored);
+                    pending.add(submit(executor, task));
+                    while (pending.size() >= window) {
+                        writeBlock(writer, crc, getBlock(pending.poll()));
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeBlock(writer, crc, getBlock(pending.poll()));
             }
-            if(bout != null){
-                bout.close();
+            writer.finish();
+        } finally {
+            for (Future<Block> future : pending) {
+                future.cancel(false);
             }
         }
     }
 
-    private static void zipFile(File fileToZip, String fileName, ZipOutputStream zipOut) throws IOException {
+    /**
+     * @return a fingerprint of the archive {@link #zipFolder(File, OutputStream, Set, ExecutorService, int)} writes:
+     * the names, sizes and modification times of the files, and the extensions stored without compression
+     */
+    static public String fingerprint(File dir, Set<String> storedExtensions) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        listFiles(dir, dir.getName(), entries);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder line = new StringBuilder();
+        for (String extension : new TreeSet<>(storedExtensions)) {
+            line.append(extension).append(',');
+        }
+        digest.update(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        for (Entry entry : entries) {
+            line.setLength(0);
+            line.append(entry.name).append('\0').append(entry.size).append('\0').append(entry.time).append('\n');
+            digest.update(line.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return ArchiveCache.toHex(digest.digest(), 16);
+    }
+
+    private static void listFiles(File fileToZip, String fileName, List<Entry> entries) throws IOException {
         if (fileToZip.isHidden()) {
             return;
         }
         if (fileToZip.isDirectory()) {
             File[] children = fileToZip.listFiles();
+            if (children == null) {
+                throw new IOException("Unable to list the folder: " + fileToZip);
+            }
             for (File childFile : children) {
-                zipFile(childFile, fileName + "/" + childFile.getName(), zipOut);
+                listFiles(childFile, fileName + "/" + childFile.getName(), entries);
             }
             return;
         }
-        FileInputStream fis = new FileInputStream(fileToZip);
-        ZipEntry zipEntry = new ZipEntry(fileName);
-        zipOut.putNextEntry(zipEntry);
-        byte[] bytes = new byte[1024];
-        int length;
-        while ((length = fis.read(bytes)) >= 0) {
-            zipOut.write(bytes, 0, length);
+        entries.add(new Entry(fileToZip, fileName));
+    }
+
+    private static Future<Block> submit(ExecutorService executor, BlockTask task) {
+        if (executor == null) {
+            FutureTask<Block> future = new FutureTask<>(task);
+            future.run();
+            return future;
+        }
+        return executor.submit(task);
+    }
+
+    private static Block getBlock(Future<Block> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void writeBlock(ZipStreamWriter writer, CRC32 crc, Block block) throws IOException {
+        Entry entry = block.entry;
+        if (block.first) {
+            writer.putNextEntry(entry.name, entry.time, entry.size);
+            crc.reset();
+            entry.written = 0;
+        }
+        crc.update(block.data, 0, block.data.length);
+        writer.write(block.compressed, 0, block.compressedLength);
+        entry.written += block.data.length;
+        if (block.last) {
+            writer.closeEntry(crc.getValue(), entry.written);
+        }
+    }
+
+    private static class Entry {
+        final File file;
+        final String name;
+        final long time;
+        final long size;
+        // uncompressed bytes written, only used by the writing thread
+        long written;
+
+        Entry(File file, String name) {
+            this.file = file;
+            this.name = name;
+            this.time = file.lastModified();
+            this.size = file.length();
+        }
+    }
+
+    private static class Block {
+        Entry entry;
+        boolean first;
+        boolean last;
+        byte[] data;
+        byte[] compressed;
+        int compressedLength;
+    }
+
+    /**
+     * Reads a block of a file and deflates it. The blocks but the last one end with a sync flush, so the blocks
+     * compressed independently make a single deflate stream once concatenated.
+     */
+    private static class BlockTask implements Callable<Block> {
+
+        private final Entry entry;
+        private final long position;
+        private final boolean first;
+        private final boolean last;
+        private final boolean stored;
+
+        BlockTask(Entry entry, long position, boolean first, boolean last, boolean stored) {
+            this.entry = entry;
+            this.position = position;
+            this.first = first;
+            this.last = last;
+            this.stored = stored;
+        }
+
+        @Override
+        public Block call() throws IOException {
+            Block block = new Block();
+            block.entry = entry;
+            block.first = first;
+            block.last = last;
+            block.data = read();
+
+            // the already compressed files are only wrapped in stored deflate blocks
+            Deflater deflater = new Deflater(stored ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(block.data);
+                if (last) {
+                    deflater.finish();
+                }
+                byte[] compressed = new byte[block.data.length + block.data.length / 1000 + 64];
+                int compressedLength = 0;
+                while (true) {
+                    compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength,
+                            last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    if (compressedLength < compressed.length && (!last || deflater.finished())) {
+                        break;
+                    }
+                    if (compressedLength == compressed.length) {
+                        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    }
+                }
+                block.compressed = compressed;
+                block.compressedLength = compressedLength;
+            } finally {
+                deflater.end();
+            }
+            return block;
+        }
+
+        private byte[] read() throws IOException {
+            try (FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ)) {
+                long remaining = Math.max(0, Math.min(BLOCK_SIZE, channel.size() - position));
+                ByteBuffer buffer = ByteBuffer.allocate((int) remaining);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                return buffer.position() == buffer.capacity() ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+            }
         }
-        fis.close();
     }
 }
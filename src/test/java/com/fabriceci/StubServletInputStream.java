@@ -0,0 +1,40 @@
+package com.fabriceci;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+public class StubServletInputStream extends ServletInputStream {
+
+    private final ByteArrayInputStream inputStream;
+
+    public StubServletInputStream(byte[] bytes) {
+        inputStream = new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public int read() throws IOException {
+        return inputStream.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        return inputStream.read(b, off, len);
+    }
+
+    @Override
+    public boolean isFinished() {
+        return inputStream.available() == 0;
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public void setReadListener(ReadListener readListener) {
+
+    }
+}
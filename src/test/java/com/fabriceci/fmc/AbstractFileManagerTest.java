@@ -90,4 +90,16 @@ public class AbstractFileManagerTest {
         assertEquals("My_folder_e_2", abstractFileManager.normalizeName("My folder ê 2"));
         assertEquals("", abstractFileManager.normalizeName("過每頁左上角的連結隨時"));
     }
+
+    @Test
+    public void propertiesConfigTest() {
+        // the properties of the file manager are live, and parsed again once changed
+        abstractFileManager.getPropertiesConfig().setProperty("readOnly", "true");
+        assertTrue(abstractFileManager.getConfig().isReadOnly());
+        assertTrue(abstractFileManager.readOnly);
+
+        abstractFileManager.getPropertiesConfig().setProperty("readOnly", "false");
+        assertFalse(abstractFileManager.getConfig().isReadOnly());
+        assertFalse(abstractFileManager.readOnly);
+    }
 }
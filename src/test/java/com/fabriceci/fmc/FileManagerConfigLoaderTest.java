@@ -0,0 +1,93 @@
+package com.fabriceci.fmc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class FileManagerConfigLoaderTest {
+
+    private Path directory;
+    private FileManagerConfigLoader loader;
+
+    @Before
+    public void initialize() throws IOException {
+        directory = Files.createTempDirectory("fmc-config");
+        write(FileManagerConfigLoader.CONFIG_DEFAULT_PROPERTIES, "config.reload.enabled=true\nextensions.restrictions=jpg\n");
+    }
+
+    @After
+    public void clean() throws IOException {
+        if (loader != null) {
+            loader.close();
+        }
+        for (File file : directory.toFile().listFiles()) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void reloadTest() throws IOException {
+        loader = new FileManagerConfigLoader(newClassLoader());
+        FileManagerConfig config = loader.getConfig();
+        assertTrue(config.isExtensionRestricted("jpg"));
+
+        write(FileManagerConfigLoader.CONFIG_CUSTOM_PROPERTIES, "extensions.restrictions=png\n");
+        loader.reload();
+
+        assertTrue(loader.getConfig().isExtensionRestricted("png"));
+        assertFalse(loader.getConfig().isExtensionRestricted("jpg"));
+        // the previous snapshot is unchanged
+        assertTrue(config.isExtensionRestricted("jpg"));
+    }
+
+    @Test
+    public void watchTest() throws IOException, InterruptedException {
+        loader = new FileManagerConfigLoader(newClassLoader());
+
+        write(FileManagerConfigLoader.CONFIG_CUSTOM_PROPERTIES, "extensions.restrictions=png\n");
+
+        // the watch service may poll the directory, on some platforms every few seconds
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!loader.getConfig().isExtensionRestricted("png") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertTrue(loader.getConfig().isExtensionRestricted("png"));
+    }
+
+    @Test
+    public void closeTest() throws IOException {
+        loader = new FileManagerConfigLoader(newClassLoader());
+        assertTrue(isWatching());
+
+        loader.close();
+        assertFalse(isWatching());
+    }
+
+    private static boolean isWatching() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("fmc-config-watcher") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ClassLoader newClassLoader() throws IOException {
+        return new URLClassLoader(new URL[]{directory.toUri().toURL()}, null);
+    }
+
+    private void write(String name, String content) throws IOException {
+        Files.write(directory.resolve(name), content.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
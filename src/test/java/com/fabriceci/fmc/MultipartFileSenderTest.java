@@ -0,0 +1,263 @@
+package com.fabriceci.fmc;
+
+import com.fabriceci.fmc.util.RandomAccessContent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class MultipartFileSenderTest {
+
+    private static final long ASYNC_TIMEOUT = 60000;
+    private Path file;
+    private byte[] content;
+
+    @Before
+    public void initialize() throws IOException {
+        content = new byte[100000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        file = Files.createTempFile("fmc-sender", ".bin");
+        Files.write(file, content);
+    }
+
+    @After
+    public void clean() throws IOException {
+        Files.delete(file);
+    }
+
+    @Test
+    public void serveFullFileTest() throws Exception {
+        BufferedServletOutputStream output = new BufferedServletOutputStream();
+        serve(null, output);
+        assertArrayEquals(content, output.toByteArray());
+    }
+
+    @Test
+    public void serveRangeTest() throws Exception {
+        BufferedServletOutputStream output = new BufferedServletOutputStream();
+        serve("bytes=30000-70000", output);
+        assertArrayEquals(Arrays.copyOfRange(content, 30000, 70001), output.toByteArray());
+    }
+
+    @Test
+    public void serveSendfileTest() throws Exception {
+        HttpServletRequest request = mockRequest("bytes=30000-");
+        when(request.getAttribute("org.apache.tomcat.sendfile.support")).thenReturn(Boolean.TRUE);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        BufferedServletOutputStream output = new BufferedServletOutputStream();
+        when(response.getOutputStream()).thenReturn(output);
+
+        MultipartFileSender.fromPath(file).with(request).with(response).serveResource();
+
+        // the range is left to the container, the end is exclusive
+        assertEquals(0, output.toByteArray().length);
+        verify(request).setAttribute("org.apache.tomcat.sendfile.filename", file.toFile().getCanonicalPath());
+        verify(request).setAttribute("org.apache.tomcat.sendfile.start", 30000L);
+        verify(request).setAttribute("org.apache.tomcat.sendfile.end", (long) content.length);
+        verify(response).setHeader("Content-Length", String.valueOf(content.length - 30000));
+    }
+
+    @Test
+    public void serveContentRangeTest() throws Exception {
+        HttpServletRequest request = mockRequest("bytes=40000-");
+        when(request.getHeader("If-Range")).thenReturn("fingerprint");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        BufferedServletOutputStream output = new BufferedServletOutputStream();
+        when(response.getOutputStream()).thenReturn(output);
+        ByteArrayContent byteContent = new ByteArrayContent(content);
+
+        MultipartFileSender.fromContent(byteContent, "folder.zip", 0, "fingerprint").with(request).with(response).serveResource();
+
+        assertArrayEquals(Arrays.copyOfRange(content, 40000, content.length), output.toByteArray());
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(response).setHeader("ETag", "fingerprint");
+        assertTrue(byteContent.closed);
+    }
+
+    @Test
+    public void serveAsyncToSlowReadersTest() throws Exception {
+        // many slow clients are served by a single thread, each one only when it can receive more
+        List<SlowServletOutputStream> outputs = new ArrayList<>();
+        List<AsyncContext> contexts = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            SlowServletOutputStream output = new SlowServletOutputStream();
+            contexts.add(serveAsync(i % 2 == 0 ? null : "bytes=1000-", output));
+            outputs.add(output);
+        }
+
+        boolean pending = true;
+        while (pending) {
+            pending = false;
+            for (SlowServletOutputStream output : outputs) {
+                pending |= output.receive();
+            }
+        }
+
+        for (int i = 0; i < outputs.size(); i++) {
+            byte[] expected = i % 2 == 0 ? content : Arrays.copyOfRange(content, 1000, content.length);
+            assertArrayEquals(expected, outputs.get(i).toByteArray());
+            verify(contexts.get(i)).complete();
+        }
+    }
+
+    @Test
+    public void serveAsyncTimeoutTest() throws Exception {
+        SlowServletOutputStream output = new SlowServletOutputStream();
+        AsyncContext asyncContext = serveAsync(null, output);
+        verify(asyncContext).setTimeout(ASYNC_TIMEOUT);
+
+        // a client too slow to receive the file within the timeout
+        ((AsyncListener) output.writeListener).onTimeout(null);
+        verify(asyncContext).complete();
+    }
+
+    private void serve(String range, ServletOutputStream output) throws Exception {
+        HttpServletRequest request = mockRequest(range);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(output);
+
+        MultipartFileSender.fromPath(file).with(request).with(response).serveResource();
+    }
+
+    private AsyncContext serveAsync(String range, ServletOutputStream output) throws Exception {
+        HttpServletRequest request = mockRequest(range);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(output);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(asyncContext.getResponse()).thenReturn(response);
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync()).thenReturn(asyncContext);
+
+        MultipartFileSender.fromPath(file).with(request).with(response).withAsync(true, ASYNC_TIMEOUT).serveResource();
+        return asyncContext;
+    }
+
+    private HttpServletRequest mockRequest(String range) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getHeader("Range")).thenReturn(range);
+        when(request.getDateHeader(anyString())).thenReturn(-1L);
+        return request;
+    }
+
+    private static class ByteArrayContent implements RandomAccessContent {
+
+        private final byte[] bytes;
+        boolean closed;
+
+        ByteArrayContent(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long size() {
+            return bytes.length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            if (position >= bytes.length) {
+                return -1;
+            }
+            int count = (int) Math.min(dst.remaining(), bytes.length - position);
+            dst.put(bytes, (int) position, count);
+            return count;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static class BufferedServletOutputStream extends ServletOutputStream {
+
+        protected final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) {
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.write(b, off, len);
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        byte[] toByteArray() {
+            return buffer.toByteArray();
+        }
+    }
+
+    /**
+     * Accepts one write each time the client receives, as a container does with a slow connection.
+     */
+    private static class SlowServletOutputStream extends BufferedServletOutputStream {
+
+        private WriteListener writeListener;
+        private boolean ready = true;
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            ready = false;
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            this.writeListener = writeListener;
+            // the container calls it once the listener is set
+            try {
+                writeListener.onWritePossible();
+            } catch (IOException e) {
+                writeListener.onError(e);
+            }
+        }
+
+        /**
+         * @return true if more data was written
+         */
+        boolean receive() throws IOException {
+            if (ready) {
+                return false;
+            }
+            ready = true;
+            writeListener.onWritePossible();
+            return true;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.fabriceci.fmc.impl;
 
+import com.fabriceci.StubServletInputStream;
 import com.fabriceci.StubServletOutputStream;
 import com.fabriceci.fmc.error.ClientErrorMessage;
 import com.fabriceci.fmc.error.FMInitializationException;
@@ -19,21 +20,24 @@ import org.junit.rules.TemporaryFolder;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static org.junit.Assert.*;
 import static org.mockito.BDDMockito.given;
-import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.*;
 
 public class LocalFileManagerTest {
 
@@ -239,6 +243,254 @@ public class LocalFileManagerTest {
         assertEquals(jsonExpectation, jsonResult);
     }
 
+    @Test
+    public void actionReadFolderPaginationTest() throws IOException, FileManagerException {
+        final LocalFileManager localFileManager = initFileManager();
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+
+        Files.write(Paths.get(temporaryFolderPath, "b.txt"), new byte[3]);
+        Files.write(Paths.get(temporaryFolderPath, "a.txt"), new byte[2]);
+        Files.write(Paths.get(temporaryFolderPath, "c.txt"), new byte[1]);
+
+        List<FileData> page = localFileManager.actionReadFolder("/", null, "name", "asc", 1, 1);
+        assertEquals(1, page.size());
+        assertEquals("b.txt", page.get(0).getAttributes().getName());
+
+        page = localFileManager.actionReadFolder("/", null, "size", "desc", 0, 2);
+        assertEquals(2, page.size());
+        assertEquals("b.txt", page.get(0).getAttributes().getName());
+        assertEquals("a.txt", page.get(1).getAttributes().getName());
+
+        assertEquals(3, localFileManager.actionReadFolder("/", null, null, null, 0, 0).size());
+        assertEquals(1, localFileManager.actionReadFolder("/", null, null, null, 2, 0).size());
+        assertEquals(0, localFileManager.actionReadFolder("/", null, "name", null, 5, 0).size());
+
+        try {
+            localFileManager.actionReadFolder("/", null, "name", "dsc", 0, 0);
+            fail();
+        } catch (FileManagerException e) {
+            assertEquals(ClientErrorMessage.INVALID_VAR, e.getMessage());
+        }
+    }
+
+    @Test
+    public void actionStreamFolderTest() throws IOException, FileManagerException {
+        final LocalFileManager localFileManager = initFileManager();
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+
+        for (int i = 0; i < 10; i++) {
+            Files.write(Paths.get(temporaryFolderPath, "file" + i + ".txt"), new byte[i]);
+        }
+
+        PrintWriter writer = new PrintWriter(outputFilePath);
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        given(resp.getWriter()).willReturn(writer);
+        given(req.getParameter(PARAM_MODE)).willReturn("readfolder");
+        given(req.getParameter(PARAM_PATH)).willReturn("/");
+        given(req.getParameter("stream")).willReturn("true");
+        given(req.getParameter("offset")).willReturn("2");
+        given(req.getParameter("limit")).willReturn("5");
+        given(req.getMethod()).willReturn("GET");
+        localFileManager.handleRequest(req, resp);
+        writer.flush();
+
+        JsonElement jsonResult = parser.parse(new String(Files.readAllBytes(Paths.get(outputFilePath))));
+        assertEquals(5, jsonResult.getAsJsonObject().getAsJsonArray("data").size());
+
+        // a streamed listing is in the directory order, a sort is refused
+        writer = new PrintWriter(outputFilePath);
+        given(resp.getWriter()).willReturn(writer);
+        given(req.getParameter("sort")).willReturn("name");
+        localFileManager.handleRequest(req, resp);
+        writer.flush();
+
+        jsonResult = parser.parse(new String(Files.readAllBytes(Paths.get(outputFilePath))));
+        assertEquals(ClientErrorMessage.INVALID_VAR, jsonResult.getAsJsonObject().getAsJsonArray("errors").get(0).getAsJsonObject().get("title").getAsString());
+    }
+
+    @Test
+    public void actionReadFolderParallelTest() throws IOException, FileManagerException {
+        final LocalFileManager localFileManager = initFileManager();
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+
+        for (int i = 0; i < 50; i++) {
+            Files.write(Paths.get(temporaryFolderPath, "file" + i + ".txt"), new byte[i]);
+        }
+
+        Map<String, String> map = new HashMap<>();
+        map.put("readfolder.parallelism", "4");
+        final LocalFileManager parallelFileManager = initFileManager(map, false);
+
+        List<FileData> expected = localFileManager.actionReadFolder("/", null);
+        List<FileData> actual = parallelFileManager.actionReadFolder("/", null);
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+        }
+    }
+
+    @Test
+    public void actionUploadTest() throws IOException, FileManagerException {
+        Map<String, String> map = new HashMap<>();
+        map.put("upload.fileSizeLimit", "100");
+        final LocalFileManager localFileManager = initFileManager(map, true);
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+
+        List<FileData> uploaded = localFileManager.actionUpload(mockUploadRequest(new byte[100], "upload.txt"), "/");
+        assertEquals(1, uploaded.size());
+        assertEquals("upload.txt", uploaded.get(0).getAttributes().getName());
+        assertEquals(100, Files.size(Paths.get(temporaryFolderPath, "upload.txt")));
+
+        // the transfer is stopped as soon as the limit is reached, the existing file is kept
+        try {
+            localFileManager.actionUpload(mockUploadRequest(new byte[101], "upload.txt"), "/");
+            fail();
+        } catch (FileManagerException e) {
+            assertEquals(ClientErrorMessage.UPLOAD_FILES_SMALLER_THAN, e.getMessage());
+        }
+        assertEquals(100, Files.size(Paths.get(temporaryFolderPath, "upload.txt")));
+        assertEquals(1, new File(temporaryFolderPath).list().length);
+    }
+
+    @Test
+    public void actionUploadChunksTest() throws IOException, FileManagerException {
+        final LocalFileManager localFileManager = initFileManager();
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+
+        try {
+            localFileManager.actionGetInfo("/upload.txt");
+            fail();
+        } catch (FileManagerException e) {
+            assertEquals(ClientErrorMessage.FILE_DOES_NOT_EXIST, e.getMessage());
+        }
+
+        HttpServletRequest req = mockUploadRequest(new byte[40], "upload.txt");
+        given(req.getHeader("Content-Range")).willReturn("bytes 0-39/100");
+        assertEquals(40, (long) localFileManager.actionUpload(req, "/").get(0).getAttributes().getSize());
+
+        // the interrupted upload is resumed from the size received so far
+        assertFalse(new File(temporaryFolderPath, "upload.txt").exists());
+        assertEquals(40, (long) localFileManager.actionGetInfo("/upload.txt").getAttributes().getSize());
+
+        req = mockUploadRequest(new byte[60], "upload.txt");
+        given(req.getHeader("Content-Range")).willReturn("bytes 40-99/100");
+        localFileManager.actionUpload(req, "/");
+        assertEquals(100, Files.size(Paths.get(temporaryFolderPath, "upload.txt")));
+        assertEquals(100, (long) localFileManager.actionGetInfo("/upload.txt").getAttributes().getSize());
+    }
+
+    @Test
+    public void actionUploadParallelTest() throws IOException, FileManagerException {
+        Map<String, String> map = new HashMap<>();
+        map.put("upload.parallelism", "4");
+        map.put("upload.queueSize", "3");
+        final LocalFileManager localFileManager = initFileManager(map, true);
+
+        String[] fileNames = new String[20];
+        for (int i = 0; i < fileNames.length; i++) {
+            fileNames[i] = "upload" + i + ".txt";
+        }
+        List<FileData> uploaded = localFileManager.actionUpload(mockUploadRequest(new byte[10], fileNames), "/");
+
+        // the results are in the order of the files in the request
+        assertEquals(fileNames.length, uploaded.size());
+        for (int i = 0; i < fileNames.length; i++) {
+            assertEquals(fileNames[i], uploaded.get(i).getAttributes().getName());
+        }
+    }
+
+    @Test
+    public void actionUploadThumbnailTest() throws IOException, FileManagerException, InterruptedException {
+        Map<String, String> map = new HashMap<>();
+        map.put("images.thumbnail.background.threads", "1");
+        final LocalFileManager localFileManager = initFileManager(map, true);
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+
+        localFileManager.actionUpload(mockUploadRequest(Files.readAllBytes(sampleImageFile.toPath()), "image.jpg"), "/");
+
+        // the thumbnail is generated in the background, without being requested
+        File thumbnail = new File(temporaryFolderPath + "/" + THUMBNAIL_DIR + "/image.jpg");
+        for (int i = 0; i < 100 && !thumbnail.isFile(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(thumbnail.isFile());
+        assertTrue(LocalFileManager.getThumbnailQueue().getCompletedCount() > 0);
+    }
+
+    @Test
+    public void uploadRequestTest() throws IOException, FMInitializationException {
+        final LocalFileManager localFileManager = initFileManager();
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+        Files.createDirectory(Paths.get(temporaryFolderPath, "folder"));
+
+        PrintWriter writer = new PrintWriter(outputFilePath);
+        HttpServletRequest req = mockUploadRequest("/folder/", new byte[10], "upload.txt");
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        given(resp.getWriter()).willReturn(writer);
+        localFileManager.handleRequest(req, resp);
+        writer.flush();
+
+        // the mode and the path are read from the body as it is streamed, the container is not asked for them
+        assertEquals(10, Files.size(Paths.get(temporaryFolderPath, "folder", "upload.txt")));
+        verify(req, never()).getParameter(anyString());
+    }
+
+    @Test
+    public void uploadLeftoversTest() throws IOException, FMInitializationException, InterruptedException {
+        temporaryFolder.delete();
+        temporaryFolder.create();
+        File folder = temporaryFolder.newFolder(FILE_ROOT, "folder");
+        File leftover = new File(folder, ".upload-1.tmp");
+        File inProgress = new File(folder, ".upload-2.tmp");
+        assertTrue(leftover.createNewFile());
+        assertTrue(leftover.setLastModified(System.currentTimeMillis() - 2 * 86400 * 1000L));
+        assertTrue(inProgress.createNewFile());
+
+        // the files of the uploads interrupted by a stop of the server are removed when it starts again
+        initFileManager(null, false);
+        for (int i = 0; i < 100 && leftover.exists(); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(leftover.exists());
+        assertTrue(inProgress.exists());
+    }
+
+    private HttpServletRequest mockUploadRequest(byte[] content, String... fileNames) throws IOException {
+        return mockUploadRequest(null, content, fileNames);
+    }
+
+    /**
+     * @param path the "path" form field, or null
+     */
+    private HttpServletRequest mockUploadRequest(String path, byte[] content, String... fileNames) throws IOException {
+        String boundary = "BOUNDARY";
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"mode\"\r\n\r\nupload\r\n").getBytes(StandardCharsets.UTF_8));
+        if (path != null) {
+            body.write(("--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"path\"\r\n\r\n" + path + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+        for (String fileName : fileNames) {
+            body.write(("--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"files\"; filename=\"" + fileName + "\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            body.write(content);
+            body.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        body.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        given(req.getMethod()).willReturn("POST");
+        given(req.getContentType()).willReturn("multipart/form-data; boundary=" + boundary);
+        given(req.getContentLength()).willReturn(body.size());
+        given(req.getInputStream()).willReturn(new StubServletInputStream(body.toByteArray()));
+        return req;
+    }
+
     @Test
     public void actionAddFolderTest() throws IOException, FMInitializationException {
         final LocalFileManager localFileManager = initFileManager();
@@ -515,6 +767,92 @@ public class LocalFileManagerTest {
 
     }
 
+    @Test
+    public void actionGetImageSizeTest() throws IOException, FMInitializationException {
+        Map<String, String> map = new HashMap<>();
+        map.put("images.thumbnail.sizes", "150,180");
+        final LocalFileManager localFileManager = initFileManager(map, true);
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+        Files.copy(sampleImageFile.toPath(), new File(temporaryFolderPath + '/' + sampleImageFile.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        File resultFile = new File(temporaryOuputFolder.getRoot().getAbsolutePath() + "/" + "foo.jpg");
+        StubServletOutputStream servletOutputStream = new StubServletOutputStream(resultFile);
+
+        given(resp.getWriter()).willReturn(new PrintWriter(outputFilePath));
+        given(resp.getOutputStream()).willReturn(servletOutputStream);
+        given(req.getParameter(PARAM_MODE)).willReturn("getimage");
+        given(req.getParameter(PARAM_PATH)).willReturn("/" + sampleImageFile.getName());
+        given(req.getParameter(PARAM_THUMBNAIL)).willReturn("true");
+        given(req.getParameter("size")).willReturn("120");
+        given(req.getMethod()).willReturn("GET");
+        localFileManager.handleRequest(req, resp);
+        servletOutputStream.flush();
+
+        // the smallest rendition at least as large as the requested size
+        assertEquals(150, (int) ImageUtils.getImageSize(resultFile).getWidth());
+        assertTrue(new File(temporaryFolderPath + "/" + THUMBNAIL_DIR + "/" + sampleImageFile.getName() + "@150").isFile());
+        assertFalse(new File(temporaryFolderPath + "/" + THUMBNAIL_DIR + "/" + sampleImageFile.getName()).exists());
+    }
+
+    @Test
+    public void sweepThumbnailsTest() throws IOException, FileManagerException {
+        Map<String, String> map = new HashMap<>();
+        map.put("images.thumbnail.background.threads", "0");
+        final LocalFileManager localFileManager = initFileManager(map, true);
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+        File image = new File(temporaryFolderPath + "/sub/image.jpg");
+        assertTrue(image.getParentFile().mkdir());
+        Files.copy(sampleImageFile.toPath(), image.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(sampleImageFile.toPath(), new File(temporaryFolderPath + "/sub/kept.jpg").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertNotNull(localFileManager.getThumbnail("/sub/image.jpg", true));
+        assertNotNull(localFileManager.getThumbnail("/sub/kept.jpg", true));
+        // the dimensions of the folder are persisted next to its thumbnails
+        assertEquals(2, localFileManager.actionReadFolder("/sub/", null).size());
+        localFileManager.afterRequest();
+        File dimensions = new File(temporaryFolderPath + "/" + THUMBNAIL_DIR + "/sub/.dimensions");
+        assertTrue(dimensions.exists());
+
+        // deleted without the file manager
+        assertTrue(image.delete());
+        localFileManager.sweepThumbnails(1000);
+
+        assertFalse(new File(temporaryFolderPath + "/" + THUMBNAIL_DIR + "/sub/image.jpg").exists());
+        assertTrue(new File(temporaryFolderPath + "/" + THUMBNAIL_DIR + "/sub/kept.jpg").exists());
+        assertTrue(dimensions.exists());
+    }
+
+    @Test
+    public void actionGetImagePackTest() throws IOException, FMInitializationException {
+        Map<String, String> map = new HashMap<>();
+        map.put("images.thumbnail.store", "pack");
+        final LocalFileManager localFileManager = initFileManager(map, true);
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+        Files.copy(sampleImageFile.toPath(), new File(temporaryFolderPath + '/' + sampleImageFile.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        given(resp.getWriter()).willReturn(new PrintWriter(outputFilePath));
+        given(req.getParameter(PARAM_MODE)).willReturn("getimage");
+        given(req.getParameter(PARAM_PATH)).willReturn("/" + sampleImageFile.getName());
+        given(req.getParameter(PARAM_THUMBNAIL)).willReturn("true");
+        given(req.getMethod()).willReturn("GET");
+
+        // generated, then read from the pack
+        for (int i = 0; i < 2; i++) {
+            File resultFile = new File(temporaryOuputFolder.getRoot().getAbsolutePath() + "/" + "thumbnail" + i);
+            StubServletOutputStream servletOutputStream = new StubServletOutputStream(resultFile);
+            given(resp.getOutputStream()).willReturn(servletOutputStream);
+            localFileManager.handleRequest(req, resp);
+            servletOutputStream.flush();
+            assertEquals(100, (int) ImageUtils.getImageSize(resultFile).getWidth());
+        }
+
+        assertFalse(new File(temporaryFolderPath + "/" + THUMBNAIL_DIR + "/" + sampleImageFile.getName()).exists());
+        assertTrue(new File(temporaryFolderPath + "/" + THUMBNAIL_DIR + "/.pack").list().length > 0);
+    }
+
     /**
      * @param json A JSON API String response
      * @return The String without path/created/modified values
@@ -0,0 +1,96 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class ArchiveCacheTest {
+
+    private Path dir;
+
+    @Before
+    public void initialize() throws IOException {
+        dir = Files.createTempDirectory("fmc-archives");
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.removeDirectory(dir);
+    }
+
+    @Test
+    public void getTest() throws IOException {
+        ArchiveCache cache = new ArchiveCache(dir.toFile(), 1000);
+        CountingWriter writer = new CountingWriter(10);
+
+        File archive = cache.get("/folder/", "aaaa", writer);
+        assertEquals(10, archive.length());
+        assertEquals(archive, cache.get("/folder/", "aaaa", writer));
+        assertEquals(1, writer.count);
+
+        // the content of the folder has changed
+        File newArchive = cache.get("/folder/", "bbbb", writer);
+        assertNotEquals(archive, newArchive);
+        assertEquals(2, writer.count);
+    }
+
+    @Test
+    public void evictTest() throws IOException {
+        ArchiveCache cache = new ArchiveCache(dir.toFile(), 250);
+        CountingWriter writer = new CountingWriter(100);
+
+        File first = cache.get("/a/", "1", writer);
+        File second = cache.get("/b/", "1", writer);
+        first.setLastModified(System.currentTimeMillis() - 20000);
+        second.setLastModified(System.currentTimeMillis() - 10000);
+        // accessing the first archive makes the second one the least recently used
+        cache.get("/a/", "1", writer);
+
+        File third = cache.get("/c/", "1", writer);
+        assertTrue(first.exists());
+        assertFalse(second.exists());
+        assertTrue(third.exists());
+    }
+
+    @Test
+    public void invalidateTest() throws IOException {
+        ArchiveCache cache = new ArchiveCache(dir.toFile(), 1000);
+        CountingWriter writer = new CountingWriter(1);
+
+        File root = cache.get("/", "1", writer);
+        File parent = cache.get("/a/", "1", writer);
+        File folder = cache.get("/a/b/", "1", writer);
+        File sibling = cache.get("/a/c/", "1", writer);
+
+        cache.invalidate("/a/b/file.txt");
+
+        assertFalse(root.exists());
+        assertFalse(parent.exists());
+        assertFalse(folder.exists());
+        assertTrue(sibling.exists());
+    }
+
+    private static class CountingWriter implements ArchiveCache.ArchiveWriter {
+
+        private final int size;
+        private int count;
+
+        CountingWriter(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            count++;
+            out.write(new byte[size]);
+        }
+    }
+}
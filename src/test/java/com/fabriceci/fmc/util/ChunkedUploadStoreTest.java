@@ -0,0 +1,147 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class ChunkedUploadStoreTest {
+
+    private Path root;
+    private ChunkedUploadStore store;
+    private byte[] content;
+
+    @Before
+    public void initialize() throws IOException {
+        root = Files.createTempDirectory("fmc-uploads");
+        store = new ChunkedUploadStore(root.resolve(".uploads").toFile(), 60000);
+        content = new byte[30000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.removeDirectory(root);
+    }
+
+    @Test
+    public void writeChunksTest() throws IOException {
+        assertEquals(-1, store.getReceivedSize("/video.mp4"));
+
+        // out of order: nothing is contiguous until the first chunk arrives
+        assertEquals(0, write(20000, 29999));
+        assertEquals(10000, write(0, 9999));
+        assertFalse(store.moveTo("/video.mp4", root.resolve("video.mp4")));
+
+        // the upload is resumed from the received size, a chunk sent twice is accepted
+        assertEquals(10000, store.getReceivedSize("/video.mp4"));
+        assertEquals(10000, write(5000, 9999));
+        assertEquals(30000, write(10000, 19999));
+
+        assertTrue(store.moveTo("/video.mp4", root.resolve("video.mp4")));
+        assertArrayEquals(content, Files.readAllBytes(root.resolve("video.mp4")));
+        assertEquals(-1, store.getReceivedSize("/video.mp4"));
+    }
+
+    @Test
+    public void writeConcurrentChunksTest() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 20; round++) {
+                final String path = "/video" + round + ".mp4";
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<Long>> results = new ArrayList<>();
+                // the chunks of a new upload all arrive at once, none of them is lost or overwritten
+                for (int i = 0; i < 30; i++) {
+                    final int chunkStart = i * 1000;
+                    results.add(executor.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() throws Exception {
+                            start.await();
+                            byte[] chunk = Arrays.copyOfRange(content, chunkStart, chunkStart + 1000);
+                            return store.write(path, chunkStart, chunkStart + 999, content.length, new ByteArrayInputStream(chunk));
+                        }
+                    }));
+                }
+                start.countDown();
+                long received = 0;
+                for (Future<Long> result : results) {
+                    received = Math.max(received, result.get());
+                }
+                assertEquals(content.length, received);
+
+                assertTrue(store.moveTo(path, root.resolve("video.mp4")));
+                assertArrayEquals(content, Files.readAllBytes(root.resolve("video.mp4")));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void writeShortChunkTest() throws IOException {
+        store.write("/video.mp4", 0, 9999, content.length, new ByteArrayInputStream(content, 0, 5000));
+    }
+
+    @Test
+    public void removeExpiredTest() throws IOException {
+        write(0, 9999);
+        store.removeExpired();
+        assertEquals(10000, store.getReceivedSize("/video.mp4"));
+
+        File[] files = root.resolve(".uploads").toFile().listFiles();
+        for (File file : files) {
+            assertTrue(file.setLastModified(System.currentTimeMillis() - 120000));
+        }
+        store.removeExpired();
+        assertEquals(-1, store.getReceivedSize("/video.mp4"));
+        assertEquals(0, root.resolve(".uploads").toFile().list().length);
+    }
+
+    private long write(int start, int end) throws IOException {
+        byte[] chunk = Arrays.copyOfRange(content, start, end + 1);
+        return store.write("/video.mp4", start, end, content.length, new ByteArrayInputStream(chunk));
+    }
+
+    @Test
+    public void shutdownTest() throws Exception {
+        File dir = root.resolve(".uploads").toFile();
+        ChunkedUploadStore shared = ChunkedUploadStore.getInstance(dir, 60000);
+        assertTrue(isRunning("fmc-uploads-"));
+
+        ChunkedUploadStore.shutdown();
+        assertFalse(isRunning("fmc-uploads-"));
+        // a new store, collected again, once the application is started again
+        assertNotSame(shared, ChunkedUploadStore.getInstance(dir, 60000));
+        assertTrue(isRunning("fmc-uploads-"));
+        ChunkedUploadStore.shutdown();
+    }
+
+    private static boolean isRunning(String threadPrefix) throws InterruptedException {
+        // the threads of a stopped executor end shortly after
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            boolean running = false;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                running |= thread.getName().startsWith(threadPrefix) && thread.isAlive();
+            }
+            if (!running || System.currentTimeMillis() > deadline) {
+                return running;
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DirectoryThumbnailStoreTest {
+
+    private Path root;
+    private DirectoryThumbnailStore store;
+
+    @Before
+    public void initialize() throws IOException {
+        root = Files.createTempDirectory("fmc-thumbnails");
+        store = new DirectoryThumbnailStore(root.toFile());
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.removeDirectory(root);
+    }
+
+    @Test
+    public void putGetTest() throws IOException {
+        store.put("/a/b.jpg", "", thumbnail("default"));
+        store.put("/a/b.jpg", "200", thumbnail("200"));
+
+        assertEquals("default", new String(store.get("/a/b.jpg", "", 0).getData(), "UTF-8"));
+        assertEquals("200", new String(store.get("/a/b.jpg", "200", 0).getData(), "UTF-8"));
+        assertNull(store.get("/a/b.jpg", "400", 0));
+        // the default rendition is at the path of the image
+        assertTrue(new File(root.toFile(), "a/b.jpg").isFile());
+        // older than the image
+        assertNull(store.get("/a/b.jpg", "", System.currentTimeMillis() + 10000));
+    }
+
+    @Test
+    public void moveDeleteTest() throws IOException {
+        store.put("/a/b.jpg", "", thumbnail("default"));
+        store.put("/a/b.jpg", "200", thumbnail("200"));
+        store.put("/a/b.jpg2", "", thumbnail("other"));
+
+        store.move("/a/b.jpg", "/c/d.jpg");
+        assertNull(store.get("/a/b.jpg", "", 0));
+        assertNull(store.get("/a/b.jpg", "200", 0));
+        assertEquals("200", new String(store.get("/c/d.jpg", "200", 0).getData(), "UTF-8"));
+        assertNotNull(store.get("/a/b.jpg2", "", 0));
+
+        store.move("/c/", "/e/");
+        assertNotNull(store.get("/e/d.jpg", "", 0));
+
+        store.delete("/e/d.jpg");
+        assertNull(store.get("/e/d.jpg", "", 0));
+        assertNull(store.get("/e/d.jpg", "200", 0));
+
+        store.delete("/a/");
+        assertFalse(new File(root.toFile(), "a").exists());
+    }
+
+    @Test
+    public void iteratorTest() throws IOException {
+        store = new DirectoryThumbnailStore(root.toFile(), Collections.singleton(".archives"));
+        store.put("/a/b.jpg", "", thumbnail("default"));
+        store.put("/a/b.jpg", "200", thumbnail("200"));
+        store.put("/a/.c.jpg", "", thumbnail("hidden"));
+        // the other caches of the thumbnail dir
+        Files.createDirectories(root.resolve(".archives"));
+        Files.write(root.resolve(".archives/archive.zip"), new byte[10]);
+        Files.write(root.resolve("a/.dimensions"), new byte[10]);
+        Files.write(root.resolve("a/.dimensions123.tmp"), new byte[10]);
+        Files.write(root.resolve("a/.thumb-123.tmp"), new byte[10]);
+
+        Map<String, Long> sizes = new HashMap<>();
+        for (Iterator<StoredThumbnail> iterator = store.iterator(); iterator.hasNext(); ) {
+            StoredThumbnail thumbnail = iterator.next();
+            sizes.put(thumbnail.getPath() + "@" + thumbnail.getRendition(), thumbnail.getSize());
+        }
+        assertEquals(3, sizes.size());
+        assertEquals(7L, (long) sizes.get("/a/b.jpg@"));
+        assertEquals(3L, (long) sizes.get("/a/b.jpg@200"));
+        // the thumbnails of the hidden images are listed too
+        assertEquals(6L, (long) sizes.get("/a/.c.jpg@"));
+    }
+
+    private static Thumbnail thumbnail(String content) throws IOException {
+        return new Thumbnail(content.getBytes("UTF-8"));
+    }
+}
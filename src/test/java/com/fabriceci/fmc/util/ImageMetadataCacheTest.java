@@ -0,0 +1,81 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.*;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ImageMetadataCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void getPutTest() {
+        ImageMetadataCache cache = new ImageMetadataCache(temporaryFolder.getRoot(), 10);
+
+        assertNull(cache.get("/folder/image.jpg", 1000L, 10L));
+
+        cache.put("/folder/image.jpg", 1000L, 10L, new Dimension(200, 100));
+        assertEquals(new Dimension(200, 100), cache.get("/folder/image.jpg", 1000L, 10L));
+
+        // modified or resized since cached
+        assertNull(cache.get("/folder/image.jpg", 2000L, 10L));
+        assertNull(cache.get("/folder/image.jpg", 1000L, 11L));
+    }
+
+    @Test
+    public void persistenceTest() {
+        File root = temporaryFolder.getRoot();
+        ImageMetadataCache cache = new ImageMetadataCache(root, 10);
+        cache.put("/folder/image.jpg", 1000L, 10L, new Dimension(200, 100));
+        cache.put("/image.png", 1000L, 10L, new Dimension(20, 10));
+        cache.flush();
+
+        assertTrue(new File(root, "folder/.dimensions").isFile());
+
+        ImageMetadataCache reloaded = new ImageMetadataCache(root, 10);
+        assertEquals(new Dimension(200, 100), reloaded.get("/folder/image.jpg", 1000L, 10L));
+        assertEquals(new Dimension(20, 10), reloaded.get("/image.png", 1000L, 10L));
+    }
+
+    @Test
+    public void invalidateTest() throws Exception {
+        File root = temporaryFolder.getRoot();
+        ImageMetadataCache cache = new ImageMetadataCache(root, 10);
+        cache.put("/folder/image.jpg", 1000L, 10L, new Dimension(200, 100));
+        cache.put("/folder/sub/image.jpg", 1000L, 10L, new Dimension(200, 100));
+        cache.put("/image.png", 1000L, 10L, new Dimension(20, 10));
+        cache.flush();
+        assertTrue(new File(root, "folder/sub/.dimensions").isFile());
+        assertTrue(new File(root, "folder/sub/image.jpg").createNewFile());
+
+        cache.invalidate("/image.png");
+        cache.invalidate("/folder/");
+        cache.flush();
+
+        assertNull(cache.get("/image.png", 1000L, 10L));
+        assertNull(new ImageMetadataCache(root, 10).get("/image.png", 1000L, 10L));
+
+        // the store files of the folder are deleted, the thumbnails are left to the thumbnail store
+        assertFalse(new File(root, "folder/.dimensions").exists());
+        assertFalse(new File(root, "folder/sub/.dimensions").exists());
+        assertTrue(new File(root, "folder/sub/image.jpg").isFile());
+        assertNull(new ImageMetadataCache(root, 10).get("/folder/image.jpg", 1000L, 10L));
+    }
+
+    @Test
+    public void evictionTest() {
+        ImageMetadataCache cache = new ImageMetadataCache(temporaryFolder.getRoot(), 2);
+        cache.put("/a/image.jpg", 1000L, 10L, new Dimension(1, 1));
+        cache.put("/b/image.jpg", 1000L, 10L, new Dimension(2, 2));
+        cache.put("/c/image.jpg", 1000L, 10L, new Dimension(3, 3));
+
+        // evicted folders are written to the disk store and reloaded on demand
+        assertEquals(new Dimension(1, 1), cache.get("/a/image.jpg", 1000L, 10L));
+    }
+}
@@ -0,0 +1,83 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class ImageProcessingSchedulerTest {
+
+    @Test
+    public void memoryBudgetTest() throws Exception {
+        final ImageProcessingScheduler scheduler = new ImageProcessingScheduler(4, 100, 10, 10000);
+        ImageProcessingScheduler.Reservation first = scheduler.acquire(60);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // waits until the first job releases its memory
+            Future<ImageProcessingScheduler.Reservation> second = executor.submit(new Callable<ImageProcessingScheduler.Reservation>() {
+                @Override
+                public ImageProcessingScheduler.Reservation call() throws Exception {
+                    return scheduler.acquire(60);
+                }
+            });
+            for (int i = 0; i < 100 && scheduler.getWaitingCount() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, scheduler.getWaitingCount());
+            assertFalse(second.isDone());
+
+            first.close();
+            second.get(10, TimeUnit.SECONDS).close();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(0, scheduler.getReservedMemory());
+        assertEquals(60, scheduler.getPeakMemory());
+        assertEquals(2, scheduler.getCompletedCount());
+        assertEquals(1, scheduler.getQueuedCount());
+    }
+
+    @Test
+    public void largeImageTest() throws Exception {
+        ImageProcessingScheduler scheduler = new ImageProcessingScheduler(4, 100, 10, 10000);
+
+        // larger than the budget, it runs alone
+        ImageProcessingScheduler.Reservation reservation = scheduler.acquire(1000);
+        assertEquals(1000, scheduler.getReservedMemory());
+        reservation.close();
+        // closed twice
+        reservation.close();
+        assertEquals(0, scheduler.getReservedMemory());
+        assertEquals(0, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void rejectTest() throws Exception {
+        ImageProcessingScheduler scheduler = new ImageProcessingScheduler(1, 100, 0, 10000);
+        ImageProcessingScheduler.Reservation reservation = scheduler.acquire(10);
+
+        // no room in the queue
+        try {
+            scheduler.acquire(10);
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, scheduler.getRejectedCount());
+        }
+
+        // waited for too long
+        scheduler.setLimits(1, 100, 10, 50);
+        try {
+            scheduler.acquire(10);
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertEquals(2, scheduler.getRejectedCount());
+        }
+        assertEquals(0, scheduler.getWaitingCount());
+
+        reservation.close();
+        scheduler.acquire(10).close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImageUtilsTest {
+
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void getImageSizeFromHeaderTest() throws IOException {
+
+        for (String format : new String[]{"jpg", "png", "gif", "bmp"}) {
+            File file = temporaryFolder.newFile("image." + format);
+            BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+            ImageIO.write(image, format, file);
+
+            Dimension dim = ImageUtils.getImageSize(file);
+            assertEquals(format, WIDTH, dim.width);
+            assertEquals(format, HEIGHT, dim.height);
+        }
+    }
+
+    @Test
+    public void getImageSizeSvgTest() throws IOException {
+
+        File file = temporaryFolder.newFile("image.svg");
+        Files.write(file.toPath(), "<?xml version=\"1.0\"?>\n<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"120px\" height=\"80\"></svg>".getBytes(StandardCharsets.UTF_8));
+        assertEquals(new Dimension(120, 80), ImageUtils.getImageSize(file));
+
+        Files.write(file.toPath(), "<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 64 48\"></svg>".getBytes(StandardCharsets.UTF_8));
+        assertEquals(new Dimension(64, 48), ImageUtils.getImageSize(file));
+    }
+
+    @Test
+    public void getImageSizeInvalidTest() throws IOException {
+
+        File file = temporaryFolder.newFile("image.jpg");
+        Files.write(file.toPath(), "not an image".getBytes(StandardCharsets.UTF_8));
+        assertEquals(new Dimension(), ImageUtils.getImageSize(file));
+    }
+
+    @Test
+    public void readSubsampledTest() throws IOException {
+
+        for (String format : new String[]{"jpg", "png"}) {
+            File file = temporaryFolder.newFile("large." + format);
+            ImageIO.write(new BufferedImage(1000, 600, BufferedImage.TYPE_INT_RGB), format, file);
+
+            // twice the size of the image fitted in the box
+            BufferedImage image = ImageUtils.readSubsampled(file, 100, 100);
+            assertEquals(format, 200, image.getWidth());
+            assertEquals(format, 120, image.getHeight());
+
+            image = ImageUtils.readSubsampled(file, 2000, Integer.MAX_VALUE);
+            assertEquals(format, 1000, image.getWidth());
+        }
+    }
+
+    @Test
+    public void getSubsamplingTest() {
+        assertEquals(1, ImageUtils.getSubsampling(200, 162, 100, Integer.MAX_VALUE));
+        assertEquals(43, ImageUtils.getSubsampling(8660, 5773, 100, Integer.MAX_VALUE));
+        assertEquals(10, ImageUtils.getSubsampling(8660, 5773, 400, 400));
+        // a portrait image is fitted on its height
+        assertEquals(10, ImageUtils.getSubsampling(5773, 8660, 400, 400));
+    }
+}
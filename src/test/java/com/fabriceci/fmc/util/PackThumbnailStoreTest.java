@@ -0,0 +1,202 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class PackThumbnailStoreTest {
+
+    private Path root;
+
+    @Before
+    public void initialize() throws IOException {
+        root = Files.createTempDirectory("fmc-pack");
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.removeDirectory(root);
+    }
+
+    @Test
+    public void putGetTest() throws IOException {
+        PackThumbnailStore store = new PackThumbnailStore(root.toFile());
+        store.put("/a/b.jpg", "", thumbnail("default"));
+        store.put("/a/b.jpg", "200", thumbnail("200"));
+        store.put("/a/b.jpg", "", thumbnail("replaced"));
+
+        assertEquals("replaced", content(store.get("/a/b.jpg", "", 0)));
+        assertEquals("200", content(store.get("/a/b.jpg", "200", 0)));
+        assertNull(store.get("/a/b.jpg", "400", 0));
+        // older than the image
+        assertNull(store.get("/a/b.jpg", "", System.currentTimeMillis() + 10000));
+        assertEquals(2, store.getCount());
+        int count = 0;
+        for (Iterator<StoredThumbnail> iterator = store.iterator(); iterator.hasNext(); count++) {
+            StoredThumbnail thumbnail = iterator.next();
+            assertEquals("/a/b.jpg", thumbnail.getPath());
+            assertEquals(thumbnail.getRendition().isEmpty() ? 8 : 3, thumbnail.getSize());
+        }
+        assertEquals(2, count);
+
+        // the index is rebuilt from the segments
+        store.close();
+        store = new PackThumbnailStore(root.toFile());
+        assertEquals("replaced", content(store.get("/a/b.jpg", "", 0)));
+        assertEquals(2, store.getCount());
+        assertTrue(store.getUnusedSize() > 0);
+        store.close();
+    }
+
+    @Test
+    public void moveDeleteTest() throws IOException {
+        PackThumbnailStore store = new PackThumbnailStore(root.toFile());
+        store.put("/a/b.jpg", "", thumbnail("default"));
+        store.put("/a/b.jpg", "200", thumbnail("200"));
+        store.put("/a/b.jpg2", "", thumbnail("other"));
+
+        store.move("/a/b.jpg", "/c/d.jpg");
+        assertNull(store.get("/a/b.jpg", "", 0));
+        assertEquals("200", content(store.get("/c/d.jpg", "200", 0)));
+        assertEquals("other", content(store.get("/a/b.jpg2", "", 0)));
+
+        store.move("/c/", "/e/");
+        assertEquals("default", content(store.get("/e/d.jpg", "", 0)));
+
+        store.delete("/a/");
+        store.delete("/e/d.jpg");
+        assertEquals(0, store.getCount());
+
+        // the removals are kept
+        store.close();
+        store = new PackThumbnailStore(root.toFile());
+        assertEquals(0, store.getCount());
+        assertNull(store.get("/a/b.jpg2", "", 0));
+
+        // the renditions of an image stored before the store was opened are found too
+        store.put("/f.jpg", "400", thumbnail("400"));
+        store.close();
+        store = new PackThumbnailStore(root.toFile());
+        store.move("/f.jpg", "/g.jpg");
+        assertEquals("400", content(store.get("/g.jpg", "400", 0)));
+        store.delete("/g.jpg");
+        assertEquals(0, store.getCount());
+        store.close();
+    }
+
+    @Test
+    public void compactTest() throws IOException {
+        PackThumbnailStore store = new PackThumbnailStore(root.toFile());
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        for (int i = 0; i < 100; i++) {
+            store.put("/image" + i + ".jpg", "", new Thumbnail(data));
+        }
+        for (int i = 0; i < 80; i++) {
+            store.delete("/image" + i + ".jpg");
+        }
+        long size = store.getSize();
+
+        // too small to be compacted in the background
+        assertEquals(0, store.compact());
+        assertTrue(store.compactAll() > 0);
+        assertTrue(store.getSize() < size / 4);
+        assertEquals(0, store.getUnusedSize());
+        assertEquals(20, store.getCount());
+        assertArrayEquals(data, store.get("/image99.jpg", "", 0).getData());
+
+        store.close();
+        store = new PackThumbnailStore(root.toFile());
+        assertEquals(20, store.getCount());
+        assertArrayEquals(data, store.get("/image80.jpg", "", 0).getData());
+        store.close();
+    }
+
+    @Test
+    public void compactConcurrentWritesTest() throws Exception {
+        final PackThumbnailStore store = new PackThumbnailStore(root.toFile());
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        for (int i = 0; i < 200; i++) {
+            store.put("/image" + i + ".jpg", "", new Thumbnail(data));
+        }
+        for (int i = 0; i < 100; i++) {
+            store.delete("/image" + i + ".jpg");
+        }
+
+        // the thumbnails stay readable and writable while they are copied
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Long> compaction = executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return store.compactAll();
+            }
+        });
+        for (int i = 100; i < 200; i++) {
+            assertArrayEquals(data, store.get("/image" + i + ".jpg", "", 0).getData());
+            store.put("/image" + i + ".jpg", "", thumbnail("new" + i));
+            store.put("/other" + i + ".jpg", "", thumbnail("other" + i));
+        }
+        assertTrue(compaction.get() > 0);
+        executor.shutdown();
+
+        store.compactAll();
+        assertEquals(200, store.getCount());
+        assertEquals(0, store.getUnusedSize());
+        store.close();
+
+        PackThumbnailStore reopened = new PackThumbnailStore(root.toFile());
+        assertEquals(200, reopened.getCount());
+        for (int i = 100; i < 200; i++) {
+            assertEquals("new" + i, content(reopened.get("/image" + i + ".jpg", "", 0)));
+            assertEquals("other" + i, content(reopened.get("/other" + i + ".jpg", "", 0)));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void incompleteRecordTest() throws IOException {
+        PackThumbnailStore store = new PackThumbnailStore(root.toFile());
+        store.put("/a.jpg", "", thumbnail("first"));
+        store.put("/a.jpg", "", thumbnail("second"));
+        store.close();
+
+        // a crash while appending the second one
+        File[] files = root.toFile().listFiles();
+        assertEquals(1, files.length);
+        try (RandomAccessFile segment = new RandomAccessFile(files[0], "rw")) {
+            segment.setLength(segment.length() - 2);
+        }
+
+        store = new PackThumbnailStore(root.toFile());
+        assertEquals("first", content(store.get("/a.jpg", "", 0)));
+        store.put("/a.jpg", "", thumbnail("third"));
+        store.close();
+
+        store = new PackThumbnailStore(root.toFile());
+        assertEquals("third", content(store.get("/a.jpg", "", 0)));
+        store.close();
+    }
+
+    private static Thumbnail thumbnail(String content) throws IOException {
+        return new Thumbnail(content.getBytes("UTF-8"));
+    }
+
+    private static String content(Thumbnail thumbnail) throws IOException {
+        return thumbnail != null ? new String(thumbnail.getData(), "UTF-8") : null;
+    }
+}
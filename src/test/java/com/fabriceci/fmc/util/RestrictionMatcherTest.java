@@ -0,0 +1,56 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RestrictionMatcherTest {
+
+    @Test
+    public void matchesTest() {
+        RestrictionMatcher matcher = RestrictionMatcher.compile(Arrays.asList("_thumbs", ".htaccess", "web.config", ".*\\.bak", "(a)\\1"));
+
+        // literal
+        assertTrue(matcher.matches("_thumbs"));
+        assertFalse(matcher.matches("_thumbs2"));
+        // regex, matching the whole name
+        assertTrue(matcher.matches(".htaccess"));
+        assertTrue(matcher.matches("xhtaccess"));
+        assertFalse(matcher.matches(".htaccess.txt"));
+        assertTrue(matcher.matches("file.bak"));
+        assertFalse(matcher.matches("file.bak.txt"));
+        // back reference
+        assertTrue(matcher.matches("aa"));
+        assertFalse(matcher.matches("ab"));
+    }
+
+    @Test
+    public void specialGroupsTest() {
+        // the same named group in two regexes, and a comment which would swallow the next alternatives
+        RestrictionMatcher matcher = RestrictionMatcher.compile(Arrays.asList("(?<ext>.*)\\.bak", "(?<ext>.*)\\.tmp",
+                "(?x) secret # hidden files", ".*\\.log", "(?<=a)b|c.*"));
+
+        assertTrue(matcher.matches("file.bak"));
+        assertTrue(matcher.matches("file.tmp"));
+        assertTrue(matcher.matches("secret"));
+        assertTrue(matcher.matches("file.log"));
+        assertTrue(matcher.matches("cat"));
+        assertFalse(matcher.matches("file.txt"));
+    }
+
+    @Test
+    public void emptyTest() {
+        RestrictionMatcher matcher = RestrictionMatcher.compile(Collections.<String>emptyList());
+        assertFalse(matcher.matches("name"));
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void invalidRegexTest() {
+        RestrictionMatcher.compile(Arrays.asList("_thumbs", "[invalid"));
+    }
+}
@@ -0,0 +1,82 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightTest {
+
+    @Test
+    public void concurrentCallsTest() throws Exception {
+        final SingleFlight<String> singleFlight = new SingleFlight<>();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return singleFlight.run("key", new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            calls.incrementAndGet();
+                            started.countDown();
+                            release.await();
+                            return "result";
+                        }
+                    });
+                }
+            }));
+            started.await();
+
+            // the other callers wait for the running call
+            for (int i = 0; i < 9; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return singleFlight.run("key", new Callable<String>() {
+                            @Override
+                            public String call() {
+                                calls.incrementAndGet();
+                                return "other";
+                            }
+                        });
+                    }
+                }));
+            }
+            while (((ThreadPoolExecutor) executor).getActiveCount() < 10) {
+                Thread.sleep(10);
+            }
+            // leaves the callers the time to reach the running call
+            Thread.sleep(200);
+            release.countDown();
+
+            for (Future<String> result : results) {
+                assertEquals("result", result.get());
+            }
+            assertEquals(1, calls.get());
+            assertEquals(0, singleFlight.getRunningCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failedCallTest() throws IOException {
+        new SingleFlight<String>().run("key", new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                throw new IOException("failed");
+            }
+        });
+    }
+}
@@ -0,0 +1,117 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+public class StoredZipArchiveTest {
+
+    private Path root;
+
+    @Before
+    public void initialize() throws IOException {
+        root = Files.createTempDirectory("fmc-stored-zip");
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.removeDirectory(root);
+    }
+
+    @Test
+    public void readArchiveTest() throws IOException {
+        Path folder = createFolder();
+        byte[] bytes = readAll(folder);
+
+        Path zip = root.resolve("folder.zip");
+        Files.write(zip, bytes);
+        try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            assertEquals("folder/a.txt", entries.nextElement().getName());
+            assertEquals("folder/b.bin", entries.nextElement().getName());
+            ZipEntry entry = entries.nextElement();
+            assertEquals("folder/sub/c.txt", entry.getName());
+            assertFalse(entries.hasMoreElements());
+
+            try (InputStream in = zipFile.getInputStream(zipFile.getEntry("folder/b.bin"))) {
+                assertArrayEquals(Files.readAllBytes(folder.resolve("b.bin")), toByteArray(in));
+            }
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                assertEquals("ccc", new String(toByteArray(in), "UTF-8"));
+            }
+        }
+    }
+
+    @Test
+    public void readRangeTest() throws IOException {
+        Path folder = createFolder();
+        byte[] bytes = readAll(folder);
+
+        // the same bytes are read from any position, by a new archive as by a resumed download
+        try (StoredZipArchive archive = new StoredZipArchive(folder.toFile())) {
+            for (long start : new long[]{0, 17, 5000, bytes.length - 100}) {
+                ByteBuffer buffer = ByteBuffer.allocate(3000);
+                int read = 0;
+                while (buffer.hasRemaining()) {
+                    int count = archive.read(buffer, start + read);
+                    if (count < 0) {
+                        break;
+                    }
+                    read += count;
+                }
+                assertArrayEquals(Arrays.copyOfRange(bytes, (int) start, (int) start + read), Arrays.copyOf(buffer.array(), read));
+            }
+            assertEquals(-1, archive.read(ByteBuffer.allocate(10), bytes.length));
+        }
+    }
+
+    @Test
+    public void fingerprintTest() throws IOException {
+        Path folder = createFolder();
+        String fingerprint = new StoredZipArchive(folder.toFile()).getFingerprint();
+        assertEquals(fingerprint, new StoredZipArchive(folder.toFile()).getFingerprint());
+
+        Files.write(folder.resolve("d.txt"), "d".getBytes("UTF-8"));
+        assertNotEquals(fingerprint, new StoredZipArchive(folder.toFile()).getFingerprint());
+    }
+
+    private Path createFolder() throws IOException {
+        Path folder = Files.createDirectories(root.resolve("folder/sub"));
+        byte[] random = new byte[20000];
+        new Random(1).nextBytes(random);
+        Files.write(root.resolve("folder/b.bin"), random);
+        Files.write(root.resolve("folder/a.txt"), "a".getBytes("UTF-8"));
+        Files.write(folder.resolve("c.txt"), "ccc".getBytes("UTF-8"));
+        return root.resolve("folder");
+    }
+
+    private static byte[] readAll(Path folder) throws IOException {
+        try (StoredZipArchive archive = new StoredZipArchive(folder.toFile())) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) archive.size());
+            while (buffer.hasRemaining()) {
+                assertTrue(archive.read(buffer, buffer.position()) > 0);
+            }
+            return buffer.array();
+        }
+    }
+
+    private static byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileUtils.copy(in, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,34 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.Assert.*;
+
+public class ThreadPoolsTest {
+
+    @Test
+    public void sharedPoolTest() {
+        ThreadPoolExecutor two = ThreadPools.getSharedPool("test", 2, 8);
+        ThreadPoolExecutor four = ThreadPools.getSharedPool("test", 4, 8);
+
+        // each setting gets its own pool, which keeps its size
+        assertNotSame(two, four);
+        assertSame(two, ThreadPools.getSharedPool("test", 2, 8));
+        assertEquals(2, two.getMaximumPoolSize());
+        assertEquals(4, four.getMaximumPoolSize());
+        assertNotSame(two, ThreadPools.getSharedPool("test", 2, 16));
+    }
+
+    @Test
+    public void shutdownTest() {
+        ThreadPoolExecutor pool = ThreadPools.getSharedPool("test-shutdown", 2, 8);
+        ThreadPools.shutdown();
+
+        assertTrue(pool.isShutdown());
+        ThreadPoolExecutor restarted = ThreadPools.getSharedPool("test-shutdown", 2, 8);
+        assertNotSame(pool, restarted);
+        assertFalse(restarted.isShutdown());
+    }
+}
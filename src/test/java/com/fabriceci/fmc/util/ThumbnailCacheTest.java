@@ -0,0 +1,128 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailCacheTest {
+
+    private Path root;
+    private DirectoryThumbnailStore store;
+
+    @Before
+    public void initialize() throws IOException {
+        root = Files.createTempDirectory("fmc-thumbnail-cache");
+        store = new DirectoryThumbnailStore(root.toFile());
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.removeDirectory(root);
+    }
+
+    @Test
+    public void leastRecentlyUsedTest() throws Exception {
+        ThumbnailCache cache = new ThumbnailCache(store, 250, false, 100);
+        putAndUse(cache);
+
+        assertEquals(300, cache.getSize());
+        assertEquals(1, cache.evict());
+        assertNull(store.get("/a.jpg", "", 0));
+        assertNotNull(store.get("/b.jpg", "", 0));
+        assertNotNull(store.get("/c.jpg", "", 0));
+        assertEquals(200, cache.getSize());
+        assertEquals(1, cache.getEvictedCount());
+    }
+
+    @Test
+    public void leastFrequentlyUsedTest() throws Exception {
+        ThumbnailCache cache = new ThumbnailCache(store, 250, true, 100);
+        putAndUse(cache);
+
+        assertEquals(1, cache.evict());
+        assertNotNull(store.get("/a.jpg", "", 0));
+        assertNull(store.get("/b.jpg", "", 0));
+        assertNotNull(store.get("/c.jpg", "", 0));
+    }
+
+    @Test
+    public void sweepTest() throws Exception {
+        // stored before the cache is created
+        store.put("/a.jpg", "", thumbnail());
+        store.put("/b.jpg", "", thumbnail());
+        store.put("/b.jpg", "200", thumbnail());
+        store.put("/c.jpg", "", thumbnail());
+        ThumbnailCache cache = new ThumbnailCache(store, 0, false, 100);
+        assertEquals(0, cache.getCount());
+
+        final Set<String> images = new HashSet<>(Arrays.asList("/a.jpg", "/c.jpg"));
+        ThumbnailCache.Validator validator = new ThumbnailCache.Validator() {
+            @Override
+            public boolean isValid(StoredThumbnail thumbnail) {
+                return images.contains(thumbnail.getPath());
+            }
+        };
+
+        // a batch at a time
+        assertEquals(3, cache.sweep(3, validator));
+        assertEquals(1, cache.sweep(3, validator));
+        assertEquals(2, cache.getCount());
+        assertEquals(200, cache.getSize());
+        assertEquals(2, cache.getInvalidatedCount());
+        assertNull(store.get("/b.jpg", "", 0));
+        assertNull(store.get("/b.jpg", "200", 0));
+
+        // removed without the cache, forgotten at the end of the next sweep
+        store.delete("/a.jpg");
+        assertEquals(1, cache.sweep(10, validator));
+        assertEquals(1, cache.getCount());
+    }
+
+    @Test
+    public void moveDeleteTest() throws Exception {
+        ThumbnailCache cache = new ThumbnailCache(store, 0, false, 100);
+        cache.put("/a/b.jpg", "", thumbnail());
+        cache.put("/a/b.jpg", "200", thumbnail());
+        cache.put("/c.jpg", "", thumbnail());
+
+        cache.move("/a/", "/d/");
+        assertNotNull(cache.get("/d/b.jpg", "200", 0));
+        assertEquals(3, cache.getCount());
+
+        cache.delete("/d/b.jpg");
+        assertEquals(1, cache.getCount());
+        assertEquals(100, cache.getSize());
+    }
+
+    /**
+     * Stores 3 thumbnails of 100 bytes: "a" is the least recently used, "b" the least frequently used.
+     */
+    private static void putAndUse(ThumbnailCache cache) throws Exception {
+        for (String name : new String[]{"/a.jpg", "/b.jpg", "/c.jpg"}) {
+            cache.put(name, "", thumbnail());
+        }
+        use(cache, "/a.jpg", 3);
+        use(cache, "/b.jpg", 1);
+        use(cache, "/c.jpg", 2);
+    }
+
+    private static void use(ThumbnailCache cache, String path, int count) throws Exception {
+        Thread.sleep(10);
+        for (int i = 0; i < count; i++) {
+            assertNotNull(cache.get(path, "", 0));
+        }
+    }
+
+    private static Thumbnail thumbnail() {
+        return new Thumbnail(new byte[100]);
+    }
+}
@@ -0,0 +1,51 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailEncoderTest {
+
+    private final ThumbnailEncoder encoder = new ThumbnailEncoder(0.85f);
+
+    @Test
+    public void encodePhotoTest() throws IOException {
+        BufferedImage image = new BufferedImage(100, 80, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt(0xFFFFFF));
+            }
+        }
+
+        Thumbnail thumbnail = encoder.encode(image);
+        assertNotEquals("image/png", thumbnail.getMimeType());
+        assertEquals(100, read(thumbnail).getWidth());
+    }
+
+    @Test
+    public void encodeTransparentTest() throws IOException {
+        BufferedImage image = new BufferedImage(100, 80, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.RED);
+        graphics.fillOval(10, 10, 50, 50);
+        graphics.dispose();
+
+        Thumbnail thumbnail = encoder.encode(image);
+        assertNotEquals("image/jpeg", thumbnail.getMimeType());
+        if ("image/png".equals(thumbnail.getMimeType())) {
+            assertEquals(0, read(thumbnail).getRGB(0, 0) >>> 24);
+        }
+    }
+
+    private static BufferedImage read(Thumbnail thumbnail) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(thumbnail.getData()));
+    }
+}
@@ -0,0 +1,187 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipUtilsTest {
+
+    private static final int FILE_SIZE = 1024 * 1024;
+
+    private Path root;
+
+    @Before
+    public void initialize() throws IOException {
+        root = Files.createTempDirectory("fmc-zip");
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.removeDirectory(root);
+    }
+
+    @Test
+    public void zipFolderTest() throws IOException {
+        Path folder = Files.createDirectories(root.resolve("folder/sub"));
+        Files.write(root.resolve("folder/a.txt"), "a".getBytes("UTF-8"));
+        Files.write(folder.resolve("b.txt"), "bb".getBytes("UTF-8"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipUtils.zipFolder(root.resolve("folder").toFile(), out);
+
+        int entries = 0;
+        try (ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zin.getNextEntry()) != null) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int length;
+                while ((length = zin.read(buffer)) > 0) {
+                    content.write(buffer, 0, length);
+                }
+                if (entry.getName().equals("folder/a.txt")) {
+                    assertEquals("a", content.toString("UTF-8"));
+                } else {
+                    assertEquals("folder/sub/b.txt", entry.getName());
+                    assertEquals("bb", content.toString("UTF-8"));
+                }
+                entries++;
+            }
+        }
+        assertEquals(2, entries);
+    }
+
+    @Test
+    public void zipFolderParallelTest() throws IOException {
+        Path folder = Files.createDirectories(root.resolve("parallel/sub"));
+        // several blocks, compressed and stored
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 3 * FILE_SIZE + 12345; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        byte[] textBytes = text.toString().getBytes("UTF-8");
+        byte[] randomBytes = new byte[2 * FILE_SIZE + 7];
+        new Random(1).nextBytes(randomBytes);
+        Files.write(folder.resolve("text.txt"), textBytes);
+        Files.write(folder.resolve("video.mp4"), randomBytes);
+        Files.write(folder.resolve("empty.txt"), new byte[0]);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ZipUtils.zipFolder(root.resolve("parallel").toFile(), out, Collections.singleton("mp4"), executor, 8);
+        } finally {
+            executor.shutdown();
+        }
+
+        Path archive = root.resolve("archive.zip");
+        Files.write(archive, out.toByteArray());
+        try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+            assertEquals(3, zipFile.size());
+            assertArrayEquals(textBytes, read(zipFile.getInputStream(zipFile.getEntry("parallel/sub/text.txt"))));
+            assertArrayEquals(randomBytes, read(zipFile.getInputStream(zipFile.getEntry("parallel/sub/video.mp4"))));
+            assertEquals(0, read(zipFile.getInputStream(zipFile.getEntry("parallel/sub/empty.txt"))).length);
+            assertTrue(zipFile.getEntry("parallel/sub/text.txt").getCompressedSize() < textBytes.length / 2);
+        }
+    }
+
+    @Test
+    public void fingerprintTest() throws IOException {
+        Path folder = Files.createDirectories(root.resolve("folder"));
+        Path file = Files.write(folder.resolve("a.txt"), "a".getBytes("UTF-8"));
+        Set<String> storedExtensions = Collections.singleton("mp4");
+
+        String fingerprint = ZipUtils.fingerprint(folder.toFile(), storedExtensions);
+        assertEquals(fingerprint, ZipUtils.fingerprint(folder.toFile(), storedExtensions));
+
+        Files.write(file, "ab".getBytes("UTF-8"));
+        String changed = ZipUtils.fingerprint(folder.toFile(), storedExtensions);
+        assertNotEquals(fingerprint, changed);
+
+        Files.write(folder.resolve("b.txt"), "b".getBytes("UTF-8"));
+        assertNotEquals(changed, ZipUtils.fingerprint(folder.toFile(), storedExtensions));
+    }
+
+    @Test
+    public void zipLargeFolderTest() throws IOException {
+        // 48 MB of incompressible files
+        Random random = new Random(42);
+        byte[] bytes = new byte[FILE_SIZE];
+        for (int i = 0; i < 48; i++) {
+            random.nextBytes(bytes);
+            Path folder = Files.createDirectories(root.resolve("large/" + (i % 4)));
+            Files.write(folder.resolve(i + ".bin"), bytes);
+        }
+
+        HeapSamplingOutputStream out = new HeapSamplingOutputStream();
+        ZipUtils.zipFolder(root.resolve("large").toFile(), out);
+
+        assertTrue(out.written > 48L * FILE_SIZE);
+        // the archive is not held in memory
+        assertTrue("Heap grew by " + out.maxGrowth, out.maxGrowth < 16L * FILE_SIZE);
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = in.read(buffer)) > 0) {
+            content.write(buffer, 0, length);
+        }
+        in.close();
+        return content.toByteArray();
+    }
+
+    /**
+     * Discards the bytes, and measures the heap in use every few megabytes.
+     */
+    private static class HeapSamplingOutputStream extends OutputStream {
+
+        private final long initialHeap = usedHeap();
+        private long written;
+        private long nextSample = 4L * FILE_SIZE;
+        private long maxGrowth;
+
+        @Override
+        public void write(int b) {
+            count(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count(len);
+        }
+
+        private void count(int length) {
+            written += length;
+            if (written >= nextSample) {
+                nextSample += 4L * FILE_SIZE;
+                maxGrowth = Math.max(maxGrowth, usedHeap() - initialHeap);
+            }
+        }
+
+        private static long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}